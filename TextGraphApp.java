@@ -1,18 +1,57 @@
 import java.awt.*;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
-import java.util.AbstractMap;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.PriorityQueue;
 import java.util.Random;
 import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+import javax.imageio.ImageIO;
 import javax.swing.*;
 
 
@@ -23,187 +62,5395 @@ import javax.swing.*;
 class DirectedGraph {
     // Adjacency list: source -> (target -> weight)
     private final Map<String, Map<String, Integer>> adjacencyList;
+    // Reverse adjacency list: target -> (source -> weight), kept in sync by addEdge
+    private final Map<String, Map<String, Integer>> reverseAdjacencyList;
     private final Set<String> nodes;
+    // Bumped on every structural change; used to tell whether a cached snapshot is still valid
+    private long version = 0;
+    // Bumped only when a node or edge is added, not when a weight grows (node IDs stay the same until then)
+    private long linkVersion = 0;
+    private int edgeCount = 0;
+    private GraphSnapshot cachedSnapshot = null;
+    private BridgeWordIndex cachedBridgeIndex = null;
+    private long bridgeIndexLinkVersion = -1; // linkVersion the bridge index was built for
+    private final List<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+    // Set by fromSnapshot: the maps are only filled from it once something needs them
+    private volatile GraphSnapshot unexpanded = null;
+
+    /**
+     * What one append of text (GraphBuilder.append) added to a graph.
+     */
+    static final class Change {
+        final long fromVersion;
+        final long toVersion;
+        final long words;      // Words appended
+        final int addedNodes;
+        final int addedEdges;  // New edges; edges that only got heavier are not counted
+
+        Change(long fromVersion, long toVersion, long words, int addedNodes, int addedEdges) {
+            this.fromVersion = fromVersion;
+            this.toVersion = toVersion;
+            this.words = words;
+            this.addedNodes = addedNodes;
+            this.addedEdges = addedEdges;
+        }
+
+        /** @return False if the append only raised the weights of existing edges. */
+        boolean linksChanged() {
+            return addedNodes > 0 || addedEdges > 0;
+        }
+    }
+
+    /** Told after text was appended to the graph, on the appending thread. */
+    interface ChangeListener {
+        void graphChanged(DirectedGraph graph, Change change);
+    }
 
     public DirectedGraph() {
         adjacencyList = new HashMap<>();
+        reverseAdjacencyList = new HashMap<>();
         nodes = new HashSet<>();
     }
 
     /**
-     * Adds a node to the graph.
-     * @param node The word to add as a node.
+     * Creates a graph from a snapshot, e.g. one read from a GraphSnapshotFile. The snapshot becomes the
+     * graph's cached snapshot, so snapshot-based operations (bridge words, paths, PageRank, DOT export)
+     * start right away; the maps are filled from it on first use of a map-based method.
+     */
+    static DirectedGraph fromSnapshot(GraphSnapshot snapshot) {
+        DirectedGraph graph = new DirectedGraph();
+        graph.version = snapshot.getVersion();
+        graph.cachedSnapshot = snapshot;
+        graph.unexpanded = snapshot;
+        return graph;
+    }
+
+    // Fills the maps from the snapshot given to fromSnapshot. Nodes are added in ID order and edges in
+    // each node's out-edge order, so the maps iterate (and later snapshots number nodes) exactly like
+    // those of the graph the snapshot was taken from. In-neighbor maps are filled in source ID order
+    // instead of the original edge order.
+    private synchronized void expand() {
+        GraphSnapshot snapshot = unexpanded;
+        if (snapshot == null) {
+            return;
+        }
+        int n = snapshot.nodeCount();
+        for (int u = 0; u < n; u++) {
+            String node = snapshot.wordOf(u);
+            nodes.add(node);
+            adjacencyList.put(node, new HashMap<>());
+            reverseAdjacencyList.put(node, new HashMap<>());
+        }
+        for (int u = 0; u < n; u++) {
+            String source = snapshot.wordOf(u);
+            Map<String, Integer> neighbors = adjacencyList.get(source);
+            for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                String target = snapshot.wordOf(snapshot.outTarget(e));
+                neighbors.put(target, snapshot.outWeight(e));
+                reverseAdjacencyList.get(target).put(source, snapshot.outWeight(e));
+            }
+        }
+        edgeCount = snapshot.edgeCount();
+        unexpanded = null;
+    }
+
+    /**
+     * Adds a node to the graph.
+     * @param node The word to add as a node.
+     */
+    public void addNode(String node) {
+        expand();
+        if (nodes.add(node)) {
+            // Only allocate neighbor maps for new nodes; addEdge calls this for every word pair
+            adjacencyList.put(node, new HashMap<>());
+            reverseAdjacencyList.put(node, new HashMap<>());
+            version++;
+            linkVersion++;
+        }
+    }
+
+    /**
+     * Adds or increments the weight of a directed edge.
+     * @param source The source node (word).
+     * @param target The target node (word).
+     */
+    public void addEdge(String source, String target) {
+        addEdge(source, target, 1);
+    }
+
+    /**
+     * Adds a directed edge or increases its weight by the given amount.
+     * Used when merging pre-counted edges, e.g. from a parallel build.
+     * @param source The source node (word).
+     * @param target The target node (word).
+     * @param count The amount to add to the edge weight (>= 1).
+     */
+    public void addEdge(String source, String target, int count) {
+        expand();
+        // Ensure nodes exist
+        addNode(source);
+        addNode(target);
+
+        // Get the neighbors of the source node
+        Map<String, Integer> neighbors = adjacencyList.get(source);
+
+        // Increment weight or add edge with weight count
+        // (get + put rather than merge: merge resizes lazily, which would change the map's iteration order)
+        int previousWeight = neighbors.getOrDefault(target, 0);
+        int weight = previousWeight + count;
+        neighbors.put(target, weight);
+        if (previousWeight == 0) {
+            edgeCount++;
+            linkVersion++;
+        }
+
+        // Mirror the weight in the incoming-edge index of the target
+        reverseAdjacencyList.get(target).put(source, weight);
+        version++;
+    }
+
+    /**
+     * Checks if a node exists in the graph.
+     * @param node The word to check.
+     * @return true if the node exists, false otherwise.
+     */
+    public boolean containsNode(String node) {
+        GraphSnapshot snapshot = unexpanded;
+        if (snapshot != null) {
+            return snapshot.idOf(node) >= 0; // No need to fill the maps for this
+        }
+        synchronized (this) { // Appends change the set under this lock
+            return nodes.contains(node);
+        }
+    }
+
+    /**
+     * Gets the weight of an edge.
+     * @param source The source node.
+     * @param target The target node.
+     * @return The weight of the edge, or 0 if the edge doesn't exist.
+     */
+    public int getWeight(String source, String target) {
+        expand();
+        return adjacencyList.getOrDefault(source, Collections.emptyMap()).getOrDefault(target, 0);
+    }
+
+    /**
+     * Gets the outgoing neighbors of a node.
+     * @param node The source node.
+     * @return A map of target nodes to edge weights, or an empty map if the node has no neighbors or doesn't exist.
+     */
+    public Map<String, Integer> getNeighbors(String node) {
+        expand();
+        return adjacencyList.getOrDefault(node, Collections.emptyMap());
+    }
+
+    /**
+     * Gets all nodes that have an edge pointing *to* the given node.
+     * Served from the reverse adjacency index, so this is O(1) rather than a scan of every node.
+     * @param targetNode The node whose incoming neighbors are sought.
+     * @return An unmodifiable set of source nodes pointing to targetNode (empty if the node doesn't exist).
+     */
+    public Set<String> getInNeighbors(String targetNode) {
+        return Collections.unmodifiableSet(getInNeighborsWithWeights(targetNode).keySet());
+    }
+
+    /**
+     * Gets the incoming neighbors of a node together with the weights of their edges.
+     * @param targetNode The target node.
+     * @return An unmodifiable map of source nodes to edge weights, or an empty map if the node has no incoming edges or doesn't exist.
+     */
+    public Map<String, Integer> getInNeighborsWithWeights(String targetNode) {
+        expand();
+        return Collections.unmodifiableMap(reverseAdjacencyList.getOrDefault(targetNode, Collections.emptyMap()));
+    }
+
+    /**
+     * Gets the set of all nodes in the graph.
+     * @return An unmodifiable set of nodes.
+     */
+    public Set<String> getAllNodes() {
+        expand();
+        return Collections.unmodifiableSet(nodes);
+    }
+
+    /**
+     * @return The number of nodes.
+     */
+    public int getNodeCount() {
+        GraphSnapshot snapshot = unexpanded;
+        return snapshot != null ? snapshot.nodeCount() : nodes.size();
+    }
+
+    /**
+     * @return The number of distinct edges.
+     */
+    public int getEdgeCount() {
+        GraphSnapshot snapshot = unexpanded;
+        return snapshot != null ? snapshot.edgeCount() : edgeCount;
+    }
+
+    /**
+     * Registers a listener for appends, e.g. a cache that has to drop or carry over results.
+     */
+    public void addChangeListener(ChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeChangeListener(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    // Called by GraphBuilder.append once the appended text is in
+    void fireChanged(Change change) {
+        for (ChangeListener listener : listeners) {
+            listener.graphChanged(this, change);
+        }
+    }
+
+    /**
+     * Gets the structural version of the graph. It changes whenever a node or edge is added
+     * or an edge weight is incremented.
+     * @return The current version number.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Freezes the graph into an immutable CSR snapshot. The snapshot is cached and reused
+     * until the graph changes again.
+     * @return A snapshot reflecting the current state of the graph.
+     */
+    public synchronized GraphSnapshot snapshot() {
+        if (cachedSnapshot == null || cachedSnapshot.getVersion() != version) {
+            cachedSnapshot = new GraphSnapshot(adjacencyList, version);
+        }
+        return cachedSnapshot;
+    }
+
+    /**
+     * @return The bridge word index for the current snapshot; a fresh (empty) one after nodes or edges
+     *         were added. Bridge words do not depend on weights, so after weight-only changes the tables
+     *         built so far are carried over.
+     */
+    public synchronized BridgeWordIndex bridgeIndex() {
+        GraphSnapshot snapshot = snapshot();
+        if (cachedBridgeIndex == null || cachedBridgeIndex.getSnapshot() != snapshot) {
+            cachedBridgeIndex = cachedBridgeIndex != null && bridgeIndexLinkVersion == linkVersion
+                    ? new BridgeWordIndex(cachedBridgeIndex, snapshot)
+                    : new BridgeWordIndex(snapshot, BridgeWordIndex.DEFAULT_MAX_ENTRIES);
+            bridgeIndexLinkVersion = linkVersion;
+        }
+        return cachedBridgeIndex;
+    }
+
+    /**
+     * Generates a string representation of the graph in Graphviz DOT format.
+     * For large graphs prefer writeDot, which streams the same text without building it in memory.
+     * @param highlightedPath Nodes in this path will be highlighted. Can be null.
+     * @return The graph structure in DOT format as a string.
+     */
+    public String toDotFormat(List<String> highlightedPath) {
+        return toDotFormatWithPaths(highlightedPath == null
+                ? Collections.emptyList() : Collections.singletonList(highlightedPath));
+    }
+
+    /**
+     * Generates the DOT format with several highlighted paths (e.g. all shortest paths between two words).
+     * Every node and edge on any of the paths is highlighted.
+     * @param highlightedPaths Paths to highlight, each a list of nodes. Can be empty.
+     * @return The graph structure in DOT format as a string.
+     */
+    public String toDotFormatWithPaths(Collection<? extends List<String>> highlightedPaths) {
+        StringWriter dot = new StringWriter();
+        try {
+            writeDot(dot, highlightedPaths);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringWriter does not throw
+        }
+        return dot.toString();
+    }
+
+    /**
+     * Writes the graph in DOT format (the same text as toDotFormatWithPaths) straight to a writer.
+     * @param out Destination; the caller buffers and closes it.
+     * @param highlightedPaths Paths to highlight, each a list of nodes. Can be empty.
+     * @throws IOException If writing fails.
+     */
+    public void writeDot(Writer out, Collection<? extends List<String>> highlightedPaths) throws IOException {
+        new DotExporter(snapshot()).write(out, highlightedPaths);
+    }
+
+     /**
+     * Generates a simple text representation for the CLI.
+     * @return A string describing the graph.
+     */
+    public synchronized String toCliString() {
+        expand();
+        StringBuilder sb = new StringBuilder("Directed Graph (Node -> Target (Weight)):\n");
+         if (nodes.isEmpty()) {
+            return "Graph is empty.\n";
+        }
+        List<String> sortedNodes = new ArrayList<>(nodes);
+        Collections.sort(sortedNodes); // Sort nodes alphabetically for consistent output
+
+        for (String node : sortedNodes) {
+            Map<String, Integer> neighbors = getNeighbors(node);
+            if (neighbors.isEmpty()) {
+                 sb.append(node).append(" -> (No outgoing edges)\n");
+            } else {
+                sb.append(node).append(" -> ");
+                List<String> neighborDesc = new ArrayList<>();
+                 neighbors.entrySet().stream()
+                          .sorted(Map.Entry.comparingByKey()) // Sort neighbors alphabetically
+                          .forEach(entry -> neighborDesc.add(entry.getKey() + "(" + entry.getValue() + ")"));
+                 sb.append(String.join(", ", neighborDesc)).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+}
+
+// --- DOT Export ---
+/**
+ * Streams a GraphSnapshot as Graphviz DOT text. Nodes and edges are written in the order of the
+ * DirectedGraph's hash maps (the snapshot's ID order), so the output matches the string the graph
+ * used to build in memory byte for byte. Highlighted paths are marked in a node BitSet and an
+ * edge BitSet indexed by out-edge position instead of sets of "a->b" strings.
+ */
+final class DotExporter {
+    private final GraphSnapshot snapshot;
+
+    DotExporter(GraphSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Writes the DOT text to out.
+     * @param highlightedPaths Paths to highlight, each a list of nodes; words or edges not in the graph are ignored.
+     * @throws IOException If writing fails.
+     */
+    void write(Writer out, Collection<? extends List<String>> highlightedPaths) throws IOException {
+        int n = snapshot.nodeCount();
+        BitSet pathNodes = new BitSet(n);
+        BitSet pathEdges = new BitSet();
+        markPaths(snapshot, highlightedPaths, pathNodes, pathEdges);
+
+        out.write("digraph G {\n");
+        out.write("  node [shape=box, style=rounded];\n"); // Style nodes
+        for (int u = 0; u < n; u++) {
+            out.write("  \"");
+            out.write(snapshot.wordOf(u));
+            out.write(pathNodes.get(u) ? "\" [color=red, penwidth=2.0];\n" : "\";\n");
+        }
+        for (int u = 0; u < n; u++) {
+            String source = snapshot.wordOf(u);
+            for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                out.write("  \"");
+                out.write(source);
+                out.write("\" -> \"");
+                out.write(snapshot.wordOf(snapshot.outTarget(e)));
+                out.write("\" [label=\"");
+                out.write(Integer.toString(snapshot.outWeight(e)));
+                out.write(pathEdges.get(e) ? "\", color=red, penwidth=2.0];\n" : "\"];\n");
+            }
+        }
+        out.write("}\n");
+    }
+
+    /**
+     * Marks the nodes and edges (by out-edge position) on the given paths; words or edges not in the
+     * snapshot are ignored.
+     */
+    static void markPaths(GraphSnapshot snapshot, Collection<? extends List<String>> paths,
+                          BitSet pathNodes, BitSet pathEdges) {
+        for (List<String> path : paths) {
+            int previous = -1;
+            for (String word : path) {
+                int id = snapshot.idOf(word);
+                if (id >= 0) {
+                    pathNodes.set(id);
+                    int edge = previous >= 0 ? edgeIndex(snapshot, previous, id) : -1;
+                    if (edge >= 0) pathEdges.set(edge);
+                }
+                previous = id;
+            }
+        }
+    }
+
+    // Index of the edge u -> v in the out-edge arrays, or -1 if there is none
+    private static int edgeIndex(GraphSnapshot snapshot, int u, int v) {
+        for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+            if (snapshot.outTarget(e) == v) return e;
+        }
+        return -1;
+    }
+}
+
+// --- Graph Rendering ---
+/**
+ * Draws a GraphSnapshot into a BufferedImage without Graphviz, so large graphs can be shown and no
+ * external process is needed. Meant to run off the Event Dispatch Thread.
+ * Nodes are placed by a force-directed layout (Fruchterman-Reingold): edges pull their ends
+ * together and nodes push each other apart. Repulsion is only computed between nodes in neighboring
+ * cells of a uniform grid, and only a sample of the nodes of a crowded cell (weighted up to the
+ * cell's size), so an iteration costs O(N + E) instead of O(N^2) even around hubs. Small graphs are
+ * drawn like the DOT output (rounded boxes with the words, arrows with weights); larger ones as
+ * points and lines.
+ * The last layout and the picture without highlighting are kept, so highlighting a different path
+ * on the same graph only copies that picture and draws the path on top.
+ * Long steps check a cancellation flag and throw CancellationException when it is set.
+ */
+final class GraphRenderer {
+    enum Backend { BUILTIN, DOT }
+
+    static final int LABEL_MAX_NODES = 300;   // Larger graphs are drawn without words and weights
+    static final int MAX_IMAGE_SIZE = 4096;   // Pixels per side
+    private static final int MIN_IMAGE_SIZE = 600;
+    private static final int MARGIN = 60;
+    private static final long LAYOUT_WORK = 30_000_000L; // Node and edge visits spent on the layout
+    private static final int CELL_SAMPLE = 12;           // Nodes sampled per crowded cell for the repulsion
+    private static final Color EDGE_COLOR = new Color(90, 90, 90);
+    private static final Color LIGHT_EDGE_COLOR = new Color(200, 200, 200);
+    private static final Color HIGHLIGHT_COLOR = Color.RED;
+
+    /** Node positions in layout units (the ideal edge length is 1). */
+    static final class Layout {
+        final GraphSnapshot snapshot;
+        final double[] x;
+        final double[] y;
+
+        Layout(GraphSnapshot snapshot, double[] x, double[] y) {
+            this.snapshot = snapshot;
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private volatile Layout lastLayout = null;          // Read without the lock by hasLayoutFor
+    private BufferedImage lastPlainImage = null;        // Picture of lastLayout without highlighting
+
+    /**
+     * @return True if a render of this snapshot would reuse the last layout. Does not wait for a running render.
+     */
+    boolean hasLayoutFor(GraphSnapshot snapshot) {
+        Layout layout = lastLayout;
+        return layout != null && layout.snapshot == snapshot;
+    }
+
+    /**
+     * Draws the snapshot with the given paths highlighted, reusing the last layout and picture if the
+     * snapshot has not changed.
+     * @param highlightedPaths Paths to highlight, each a list of words. Can be empty.
+     * @param cancelled Checked during the layout and drawing.
+     * @return A new image; the caller may keep it.
+     * @throws CancellationException If cancelled returned true.
+     */
+    synchronized BufferedImage render(GraphSnapshot snapshot, Collection<? extends List<String>> highlightedPaths,
+                                      BooleanSupplier cancelled) {
+        if (!hasLayoutFor(snapshot)) {
+            lastLayout = null;
+            lastPlainImage = null;
+            Layout layout = layout(snapshot, cancelled);
+            lastPlainImage = drawPlain(layout, cancelled);
+            lastLayout = layout;
+        }
+        BufferedImage plain = lastPlainImage;
+        BufferedImage image = new BufferedImage(plain.getWidth(), plain.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.drawImage(plain, 0, 0, null);
+        BitSet pathNodes = new BitSet(snapshot.nodeCount());
+        BitSet pathEdges = new BitSet();
+        DotExporter.markPaths(snapshot, highlightedPaths, pathNodes, pathEdges);
+        if (!pathNodes.isEmpty()) {
+            new Painter(lastLayout, image.getWidth(), image.getHeight(), g).drawHighlight(pathNodes, pathEdges);
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Force-directed layout of the snapshot. Deterministic for a given snapshot.
+     * @throws CancellationException If cancelled returned true.
+     */
+    static Layout layout(GraphSnapshot snapshot, BooleanSupplier cancelled) {
+        int n = snapshot.nodeCount();
+        double side = Math.max(1.0, Math.sqrt(n)) * 1.5;
+        double[] x = new double[n];
+        double[] y = new double[n];
+        Random random = new Random(n);
+        for (int u = 0; u < n; u++) {
+            x[u] = random.nextDouble() * side;
+            y[u] = random.nextDouble() * side;
+        }
+        if (n < 2) {
+            return new Layout(snapshot, x, y);
+        }
+
+        // Grid with cells of twice the ideal distance; farther nodes do not repel each other
+        double cell = 2.0;
+        int gridSide = (int) Math.ceil(side / cell) + 1;
+        int[] cellStart = new int[gridSide * gridSide + 1];
+        int[] cellNodes = new int[n];
+        int[] cellOf = new int[n];
+        double[] dx = new double[n];
+        double[] dy = new double[n];
+
+        long work = 9L * CELL_SAMPLE * n + 2L * snapshot.edgeCount();
+        int iterations = (int) Math.max(30, Math.min(300, LAYOUT_WORK / work));
+        for (int it = 0; it < iterations; it++) {
+            if (cancelled.getAsBoolean()) throw new CancellationException();
+            double temperature = side / 10 * (1.0 - (double) it / iterations) + 0.01;
+
+            // Bucket the nodes by cell (counting sort)
+            Arrays.fill(cellStart, 0);
+            for (int u = 0; u < n; u++) {
+                int cx = Math.min(gridSide - 1, (int) (x[u] / cell));
+                int cy = Math.min(gridSide - 1, (int) (y[u] / cell));
+                cellOf[u] = cy * gridSide + cx;
+                cellStart[cellOf[u] + 1]++;
+            }
+            for (int c = 0; c < gridSide * gridSide; c++) {
+                cellStart[c + 1] += cellStart[c];
+            }
+            int[] fill = Arrays.copyOf(cellStart, gridSide * gridSide);
+            for (int u = 0; u < n; u++) {
+                cellNodes[fill[cellOf[u]]++] = u;
+            }
+
+            // Repulsion k^2 / d from the nodes in the 3 x 3 neighboring cells
+            Arrays.fill(dx, 0);
+            Arrays.fill(dy, 0);
+            for (int u = 0; u < n; u++) {
+                if ((u & 0xFFF) == 0 && cancelled.getAsBoolean()) throw new CancellationException();
+                int cx = cellOf[u] % gridSide;
+                int cy = cellOf[u] / gridSide;
+                for (int ny = Math.max(0, cy - 1); ny <= Math.min(gridSide - 1, cy + 1); ny++) {
+                    for (int nx = Math.max(0, cx - 1); nx <= Math.min(gridSide - 1, cx + 1); nx++) {
+                        int c = ny * gridSide + nx;
+                        int count = cellStart[c + 1] - cellStart[c];
+                        // Every node of a small cell; an evenly spaced sample, starting at a per-node
+                        // offset, of a crowded one, each standing for count / CELL_SAMPLE nodes
+                        int visits = Math.min(count, CELL_SAMPLE);
+                        double weight = (double) count / visits;
+                        for (int j = 0; j < visits; j++) {
+                            int v = cellNodes[cellStart[c] + (int) (((long) j * count + u) / visits % count)];
+                            if (v == u) continue;
+                            double ddx = x[u] - x[v];
+                            double ddy = y[u] - y[v];
+                            double d2 = ddx * ddx + ddy * ddy;
+                            if (d2 > cell * cell) continue;
+                            if (d2 < 1e-9) { // Same position: push apart in a fixed direction
+                                ddx = ((u * 31 + v) & 1) == 0 ? 0.01 : -0.01;
+                                d2 = ddx * ddx;
+                            }
+                            dx[u] += weight * ddx / d2;
+                            dy[u] += weight * ddy / d2;
+                        }
+                    }
+                }
+            }
+
+            // Attraction d^2 / k along the edges, in both directions
+            for (int u = 0; u < n; u++) {
+                for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                    int v = snapshot.outTarget(e);
+                    if (v == u) continue;
+                    double ddx = x[u] - x[v];
+                    double ddy = y[u] - y[v];
+                    double d = Math.sqrt(ddx * ddx + ddy * ddy);
+                    dx[u] -= ddx * d;
+                    dy[u] -= ddy * d;
+                    dx[v] += ddx * d;
+                    dy[v] += ddy * d;
+                }
+            }
+
+            // Move by at most the temperature, staying inside the square
+            for (int u = 0; u < n; u++) {
+                double length = Math.sqrt(dx[u] * dx[u] + dy[u] * dy[u]);
+                if (length > 0) {
+                    double step = Math.min(length, temperature) / length;
+                    x[u] = Math.min(side, Math.max(0, x[u] + dx[u] * step));
+                    y[u] = Math.min(side, Math.max(0, y[u] + dy[u] * step));
+                }
+            }
+        }
+        return new Layout(snapshot, x, y);
+    }
+
+    // The picture without highlighting, sized to the number of nodes
+    private static BufferedImage drawPlain(Layout layout, BooleanSupplier cancelled) {
+        int n = layout.snapshot.nodeCount();
+        double perNode = n <= LABEL_MAX_NODES ? 110 : 8;
+        double[] bounds = bounds(layout);
+        double spanX = Math.max(1, bounds[1] - bounds[0]);
+        double spanY = Math.max(1, bounds[3] - bounds[2]);
+        int longSide = (int) Math.max(MIN_IMAGE_SIZE, Math.min(MAX_IMAGE_SIZE, Math.sqrt(n) * perNode));
+        int width = spanX >= spanY ? longSide : Math.max(MIN_IMAGE_SIZE / 2, (int) (longSide * spanX / spanY));
+        int height = spanY >= spanX ? longSide : Math.max(MIN_IMAGE_SIZE / 2, (int) (longSide * spanY / spanX));
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        new Painter(layout, width, height, g).drawPlain(cancelled);
+        g.dispose();
+        return image;
+    }
+
+    // {minX, maxX, minY, maxY} of the node positions; all 0 for an empty graph
+    private static double[] bounds(Layout layout) {
+        int n = layout.snapshot.nodeCount();
+        if (n == 0) {
+            return new double[4];
+        }
+        double[] bounds = {Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int u = 0; u < n; u++) {
+            bounds[0] = Math.min(bounds[0], layout.x[u]);
+            bounds[1] = Math.max(bounds[1], layout.x[u]);
+            bounds[2] = Math.min(bounds[2], layout.y[u]);
+            bounds[3] = Math.max(bounds[3], layout.y[u]);
+        }
+        return bounds;
+    }
+
+    // Maps layout coordinates to pixels and draws nodes and edges
+    private static final class Painter {
+        private final Layout layout;
+        private final GraphSnapshot snapshot;
+        private final Graphics2D g;
+        private final boolean labeled;
+        private final double scale;
+        private final double offsetX;
+        private final double offsetY;
+
+        Painter(Layout layout, int width, int height, Graphics2D g) {
+            this.layout = layout;
+            this.snapshot = layout.snapshot;
+            this.g = g;
+            this.labeled = snapshot.nodeCount() <= LABEL_MAX_NODES;
+            double[] bounds = bounds(layout);
+            double minX = bounds[0], maxX = bounds[1], minY = bounds[2], maxY = bounds[3];
+            this.scale = Math.min((width - 2.0 * MARGIN) / Math.max(1e-9, maxX - minX),
+                    (height - 2.0 * MARGIN) / Math.max(1e-9, maxY - minY));
+            this.offsetX = MARGIN - minX * scale + (width - 2.0 * MARGIN - (maxX - minX) * scale) / 2;
+            this.offsetY = MARGIN - minY * scale + (height - 2.0 * MARGIN - (maxY - minY) * scale) / 2;
+            if (labeled) {
+                g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+                g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 12));
+            }
+        }
+
+        private double px(int u) { return layout.x[u] * scale + offsetX; }
+        private double py(int u) { return layout.y[u] * scale + offsetY; }
+
+        void drawPlain(BooleanSupplier cancelled) {
+            int n = snapshot.nodeCount();
+            g.setColor(labeled ? EDGE_COLOR : LIGHT_EDGE_COLOR);
+            g.setStroke(new BasicStroke(1f));
+            int drawn = 0;
+            for (int u = 0; u < n; u++) {
+                for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                    if ((++drawn & 0xFFFF) == 0 && cancelled.getAsBoolean()) throw new CancellationException();
+                    drawEdge(u, e, false);
+                }
+            }
+            g.setColor(Color.BLACK);
+            for (int u = 0; u < n; u++) {
+                drawNode(u, false);
+            }
+        }
+
+        void drawHighlight(BitSet pathNodes, BitSet pathEdges) {
+            g.setColor(HIGHLIGHT_COLOR);
+            g.setStroke(new BasicStroke(2f));
+            for (int u = pathNodes.nextSetBit(0); u >= 0; u = pathNodes.nextSetBit(u + 1)) {
+                for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                    if (pathEdges.get(e)) drawEdge(u, e, true);
+                }
+            }
+            for (int u = pathNodes.nextSetBit(0); u >= 0; u = pathNodes.nextSetBit(u + 1)) {
+                drawNode(u, true);
+            }
+        }
+
+        private void drawEdge(int u, int e, boolean highlighted) {
+            int v = snapshot.outTarget(e);
+            double x1 = px(u), y1 = py(u), x2 = px(v), y2 = py(v);
+            if (!labeled) {
+                g.drawLine((int) x1, (int) y1, (int) x2, (int) y2);
+                return;
+            }
+            if (u == v) { // Self loop above the box
+                int top = (int) y1 - boxHeight() / 2;
+                g.drawOval((int) x1 - 8, top - 16, 16, 18);
+                drawWeight(e, x1, top - 18, highlighted);
+                return;
+            }
+            // From box border to box border, with an arrow head at the target
+            double ddx = x2 - x1, ddy = y2 - y1;
+            double length = Math.sqrt(ddx * ddx + ddy * ddy);
+            if (length < 1) return;
+            double t1 = borderFraction(u, ddx, ddy), t2 = borderFraction(v, ddx, ddy);
+            if (t1 + t2 >= 1) return; // Boxes overlap
+            double sx = x1 + ddx * t1, sy = y1 + ddy * t1;
+            double tx = x2 - ddx * t2, ty = y2 - ddy * t2;
+            g.drawLine((int) sx, (int) sy, (int) tx, (int) ty);
+            double ux = ddx / length, uy = ddy / length;
+            int[] headX = {(int) tx, (int) (tx - 9 * ux + 4 * uy), (int) (tx - 9 * ux - 4 * uy)};
+            int[] headY = {(int) ty, (int) (ty - 9 * uy - 4 * ux), (int) (ty - 9 * uy + 4 * ux)};
+            g.fillPolygon(headX, headY, 3);
+            drawWeight(e, (sx + tx) / 2, (sy + ty) / 2, highlighted);
+        }
+
+        private void drawWeight(int e, double x, double y, boolean highlighted) {
+            Color color = g.getColor();
+            g.setColor(highlighted ? HIGHLIGHT_COLOR : Color.DARK_GRAY);
+            g.drawString(Integer.toString(snapshot.outWeight(e)), (int) x + 3, (int) y - 3);
+            g.setColor(color);
+        }
+
+        private void drawNode(int u, boolean highlighted) {
+            int x = (int) px(u), y = (int) py(u);
+            if (!labeled) {
+                int r = highlighted ? 3 : 1;
+                g.fillRect(x - r, y - r, 2 * r + 1, 2 * r + 1);
+                return;
+            }
+            String word = snapshot.wordOf(u);
+            int w = boxWidth(word), h = boxHeight();
+            Color color = g.getColor();
+            g.setColor(Color.WHITE);
+            g.fillRoundRect(x - w / 2, y - h / 2, w, h, 10, 10);
+            g.setColor(highlighted ? HIGHLIGHT_COLOR : Color.BLACK);
+            g.drawRoundRect(x - w / 2, y - h / 2, w, h, 10, 10);
+            g.setColor(Color.BLACK);
+            g.drawString(word, x - g.getFontMetrics().stringWidth(word) / 2, y + g.getFontMetrics().getAscent() / 2 - 1);
+            g.setColor(color);
+        }
+
+        // Fraction of the segment from the center of u that lies inside u's box
+        private double borderFraction(int u, double ddx, double ddy) {
+            double halfW = boxWidth(snapshot.wordOf(u)) / 2.0, halfH = boxHeight() / 2.0;
+            double tx = ddx == 0 ? Double.MAX_VALUE : halfW / Math.abs(ddx);
+            double ty = ddy == 0 ? Double.MAX_VALUE : halfH / Math.abs(ddy);
+            return Math.min(tx, ty);
+        }
+
+        private int boxWidth(String word) { return g.getFontMetrics().stringWidth(word) + 14; }
+        private int boxHeight() { return g.getFontMetrics().getHeight() + 8; }
+    }
+}
+
+// --- Compact Graph Snapshot (CSR) ---
+/**
+ * Immutable compressed sparse row (CSR) view of a DirectedGraph.
+ * Words are mapped to dense int IDs (in adjacency-list iteration order) and edges are stored in
+ * flat int arrays for both directions, so traversals work on primitives instead of
+ * String-keyed maps with boxed weights. The out-edges of a node keep the order of the
+ * node's neighbor map, which keeps results (e.g. bridge word order) the same as the map based code.
+ * Out-edge positions double as edge IDs.
+ */
+final class GraphSnapshot {
+    private final long version;
+    private final String[] words;                // id -> word
+    private final Map<String, Integer> wordIds;  // word -> id
+    private final int[] outOffsets;              // out-edges of u are [outOffsets[u], outOffsets[u + 1])
+    private final int[] outTargets;
+    private final int[] outWeights;
+    private final int[] sortedOutTargets;        // per-node ascending copy of outTargets, for edge lookups
+    private final int[] inOffsets;               // in-edges of v are [inOffsets[v], inOffsets[v + 1])
+    private final int[] inSources;
+    private final int[] inWeights;
+    private final int maxWeight;
+    private volatile AliasTable aliasTable = null; // Built on first use
+
+    GraphSnapshot(Map<String, Map<String, Integer>> adjacencyList, long version) {
+        this(version, outEdgesOf(adjacencyList));
+    }
+
+    private GraphSnapshot(long version, OutEdges outEdges) {
+        this(version, outEdges.words, outEdges.offsets, outEdges.targets, outEdges.weights);
+    }
+
+    /**
+     * Builds a snapshot from out-edges that are already in CSR form (e.g. read from a GraphSnapshotFile).
+     * @param words Word of each node ID.
+     * @param outOffsets Out-edges of u are [outOffsets[u], outOffsets[u + 1]); length nodes + 1.
+     * @param outTargets Target ID of each out-edge.
+     * @param outWeights Weight of each out-edge.
+     */
+    GraphSnapshot(long version, String[] words, int[] outOffsets, int[] outTargets, int[] outWeights) {
+        this.version = version;
+        this.words = words;
+        this.outOffsets = outOffsets;
+        this.outTargets = outTargets;
+        this.outWeights = outWeights;
+        int n = words.length;
+        wordIds = new HashMap<>(n * 4 / 3 + 1);
+        for (int id = 0; id < n; id++) {
+            wordIds.put(words[id], id);
+        }
+        int edgeCount = outTargets.length;
+        int[] inDegrees = new int[n];
+        int heaviest = 0;
+        for (int e = 0; e < edgeCount; e++) {
+            heaviest = Math.max(heaviest, outWeights[e]);
+            inDegrees[outTargets[e]]++;
+        }
+        maxWeight = heaviest;
+
+        sortedOutTargets = outTargets.clone();
+        for (int u = 0; u < n; u++) {
+            Arrays.sort(sortedOutTargets, outOffsets[u], outOffsets[u + 1]);
+        }
+
+        // In-edges via counting sort on the target; sources end up in ascending id order
+        inOffsets = new int[n + 1];
+        for (int v = 0; v < n; v++) {
+            inOffsets[v + 1] = inOffsets[v] + inDegrees[v];
+        }
+        inSources = new int[edgeCount];
+        inWeights = new int[edgeCount];
+        int[] fill = Arrays.copyOf(inOffsets, n);
+        for (int u = 0; u < n; u++) {
+            for (int i = outOffsets[u]; i < outOffsets[u + 1]; i++) {
+                int slot = fill[outTargets[i]]++;
+                inSources[slot] = u;
+                inWeights[slot] = outWeights[i];
+            }
+        }
+    }
+
+    // Out-edges of an adjacency map in CSR form: node IDs follow the map's order, edges each neighbor map's order
+    private static final class OutEdges {
+        final String[] words;
+        final int[] offsets;
+        final int[] targets;
+        final int[] weights;
+
+        OutEdges(String[] words, int[] offsets, int[] targets, int[] weights) {
+            this.words = words;
+            this.offsets = offsets;
+            this.targets = targets;
+            this.weights = weights;
+        }
+    }
+
+    private static OutEdges outEdgesOf(Map<String, Map<String, Integer>> adjacencyList) {
+        int n = adjacencyList.size();
+        String[] words = new String[n];
+        Map<String, Integer> ids = new HashMap<>(n * 4 / 3 + 1);
+        int edgeCount = 0;
+        for (Map.Entry<String, Map<String, Integer>> entry : adjacencyList.entrySet()) {
+            int id = ids.size();
+            words[id] = entry.getKey();
+            ids.put(entry.getKey(), id);
+            edgeCount += entry.getValue().size();
+        }
+
+        // Out-edges, in neighbor map order
+        int[] offsets = new int[n + 1];
+        int[] targets = new int[edgeCount];
+        int[] weights = new int[edgeCount];
+        int e = 0;
+        for (int u = 0; u < n; u++) {
+            offsets[u] = e;
+            for (Map.Entry<String, Integer> edge : adjacencyList.get(words[u]).entrySet()) {
+                targets[e] = ids.get(edge.getKey());
+                weights[e] = edge.getValue();
+                e++;
+            }
+        }
+        offsets[n] = e;
+        return new OutEdges(words, offsets, targets, weights);
+    }
+
+    public long getVersion() { return version; }
+    public int nodeCount() { return words.length; }
+    public int edgeCount() { return outTargets.length; }
+    public int maxWeight() { return maxWeight; }
+
+    /**
+     * Looks up the ID of a word.
+     * @param word The word.
+     * @return Its ID, or -1 if the word is not a node of the snapshot.
+     */
+    public int idOf(String word) {
+        Integer id = wordIds.get(word);
+        return id == null ? -1 : id;
+    }
+
+    public String wordOf(int id) { return words[id]; }
+
+    /**
+     * @return Alias tables for picking out-edges by weight; built on the first call, then shared.
+     */
+    public AliasTable aliasTable() {
+        AliasTable table = aliasTable;
+        if (table == null) {
+            synchronized (this) {
+                if (aliasTable == null) {
+                    aliasTable = new AliasTable(this);
+                }
+                table = aliasTable;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * @return The words of all nodes in ID order, as a read-only list.
+     */
+    public List<String> words() { return Collections.unmodifiableList(Arrays.asList(words)); }
+
+    public int outStart(int u) { return outOffsets[u]; }
+    public int outEnd(int u) { return outOffsets[u + 1]; }
+    public int outDegree(int u) { return outOffsets[u + 1] - outOffsets[u]; }
+    public int outTarget(int edge) { return outTargets[edge]; }
+    public int outWeight(int edge) { return outWeights[edge]; }
+
+    public int inStart(int v) { return inOffsets[v]; }
+    public int inEnd(int v) { return inOffsets[v + 1]; }
+    public int inDegree(int v) { return inOffsets[v + 1] - inOffsets[v]; }
+    public int inSource(int slot) { return inSources[slot]; }
+    public int inWeight(int slot) { return inWeights[slot]; }
+
+    /**
+     * Checks whether the edge u -> v exists (binary search over u's sorted targets).
+     */
+    public boolean hasEdge(int u, int v) {
+        return Arrays.binarySearch(sortedOutTargets, outOffsets[u], outOffsets[u + 1], v) >= 0;
+    }
+
+    /**
+     * Finds the edge ID of u -> v.
+     * @return The edge ID, or -1 if there is no such edge.
+     */
+    public int edgeId(int u, int v) {
+        for (int e = outOffsets[u]; e < outOffsets[u + 1]; e++) {
+            if (outTargets[e] == v) return e;
+        }
+        return -1;
+    }
+
+    /**
+     * Collects the bridge words b with edges word1 -> b -> word2, in word1's neighbor order.
+     * @param word1 The source ID.
+     * @param word2 The target ID.
+     * @param out Buffer that receives bridge IDs; must hold at least outDegree(word1) entries.
+     * @return The number of bridge IDs written to out.
+     */
+    public int bridgeWords(int word1, int word2, int[] out) {
+        int count = 0;
+        for (int e = outOffsets[word1]; e < outOffsets[word1 + 1]; e++) {
+            int candidate = outTargets[e];
+            if (hasEdge(candidate, word2)) {
+                out[count++] = candidate;
+            }
+        }
+        return count;
+    }
+}
+
+// --- Weighted Edge Sampling ---
+/**
+ * Alias tables (Vose's method) over the out-edges of every node of a GraphSnapshot: picks an
+ * out-edge with probability proportional to its weight in O(1), whatever the node's degree.
+ * Built once per snapshot (GraphSnapshot.aliasTable()) in O(edges); out-edge slot e of a node keeps
+ * a threshold and an alias edge. A draw picks one of the node's slots uniformly and keeps the slot's
+ * edge if a coin falls below its threshold, otherwise it takes the alias edge.
+ */
+final class AliasTable {
+    private static final double SCALE = 2147483648.0; // Thresholds are probabilities times 2^31
+
+    private final GraphSnapshot snapshot;
+    private final int[] thresholds;
+    private final int[] aliases;
+
+    AliasTable(GraphSnapshot snapshot) {
+        this.snapshot = snapshot;
+        int edgeCount = snapshot.edgeCount();
+        thresholds = new int[edgeCount];
+        aliases = new int[edgeCount];
+        int maxDegree = 0;
+        for (int u = 0; u < snapshot.nodeCount(); u++) {
+            maxDegree = Math.max(maxDegree, snapshot.outDegree(u));
+        }
+        double[] scaled = new double[maxDegree];
+        int[] small = new int[maxDegree];
+        int[] large = new int[maxDegree];
+        for (int u = 0; u < snapshot.nodeCount(); u++) {
+            build(snapshot.outStart(u), snapshot.outDegree(u), scaled, small, large);
+        }
+    }
+
+    // Vose's method for the out-edges [first, first + degree): slots start with weight * degree / total,
+    // then each slot below 1 is topped up from a slot above 1, which becomes its alias
+    private void build(int first, int degree, double[] scaled, int[] small, int[] large) {
+        if (degree == 0) return;
+        long total = 0;
+        for (int i = 0; i < degree; i++) {
+            total += snapshot.outWeight(first + i);
+        }
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < degree; i++) {
+            scaled[i] = (double) snapshot.outWeight(first + i) * degree / total;
+            if (scaled[i] < 1.0) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int less = small[--smallCount];
+            int more = large[--largeCount];
+            thresholds[first + less] = (int) (scaled[less] * SCALE);
+            aliases[first + less] = first + more;
+            scaled[more] = (scaled[more] + scaled[less]) - 1.0;
+            if (scaled[more] < 1.0) {
+                small[smallCount++] = more;
+            } else {
+                large[largeCount++] = more;
+            }
+        }
+        // What is left is 1 up to rounding: such slots always keep their own edge
+        while (largeCount > 0) {
+            int slot = large[--largeCount];
+            thresholds[first + slot] = Integer.MAX_VALUE;
+            aliases[first + slot] = first + slot;
+        }
+        while (smallCount > 0) {
+            int slot = small[--smallCount];
+            thresholds[first + slot] = Integer.MAX_VALUE;
+            aliases[first + slot] = first + slot;
+        }
+    }
+
+    /**
+     * Picks an out-edge of u with probability weight / (total out-weight of u).
+     * @param u A node with at least one out-edge.
+     * @param bits 64 random bits (e.g. from nextLong()): the low half picks the slot, the high half is the coin.
+     * @return The edge ID.
+     */
+    int sample(int u, long bits) {
+        int slot = snapshot.outStart(u) + (int) (((bits & 0xFFFFFFFFL) * snapshot.outDegree(u)) >>> 32);
+        return (int) (bits >>> 33) < thresholds[slot] ? slot : aliases[slot];
+    }
+}
+
+// --- Random Walks ---
+/**
+ * Random walks over a read-only GraphSnapshot. A walk follows random out-edges, chosen uniformly or
+ * in proportion to their weights (through the snapshot's AliasTable), until it takes an edge for the
+ * second time or reaches a dead end. Visited edges are marked in a bit set indexed by edge ID; after
+ * a walk only the bits it set are cleared again, so each thread reuses one bit set for all of its
+ * walks instead of allocating one per walk.
+ * run() spreads many independent walks over a fork-join pool. Walk i draws from its own
+ * SplittableRandom seeded from (seed, i), so the walks do not depend on the number of threads or
+ * on scheduling, and walkers share nothing but the snapshot (no locks, no shared counters).
+ */
+final class RandomWalkEngine {
+    private static final long SEED_GAMMA = 0x9E3779B97F4A7C15L; // Spreads walk indices over the seed space
+    private static final int WALKS_PER_TASK = 256;
+
+    /** How the next edge is chosen. */
+    enum Sampling {
+        /** Every out-edge is equally likely (default). */
+        UNIFORM,
+        /** Out-edges are chosen in proportion to their weights. */
+        WEIGHTED
+    }
+
+    /** Why a walk ended. */
+    enum Stop {
+        REPEATED_EDGE, DEAD_END, CANCELLED
+    }
+
+    /** Receives the walks of run() as they finish, on the worker threads. */
+    interface WalkListener {
+        /**
+         * @param walk Index of the walk (0 to walks - 1); walks finish in no particular order.
+         * @param nodes Visited node IDs in nodes[0 .. length); only valid during the call.
+         * @param length Number of visited nodes, including the final node of a repeated edge.
+         */
+        void walkFinished(long walk, int[] nodes, int length, Stop stop);
+    }
+
+    /**
+     * Totals of a run: walks per stop reason, steps and the distribution of walk lengths
+     * (visited nodes per walk).
+     */
+    static final class Stats {
+        private long walks = 0;
+        private long steps = 0;                          // Edges taken
+        private long visits = 0;                         // Nodes visited, summed over all walks
+        private final long[] stops = new long[Stop.values().length];
+        private long[] lengthCounts = new long[64];      // Walks per length
+        private int maxLength = 0;
+        private long nanos = 0;
+
+        private void add(int length, Stop stop) {
+            walks++;
+            steps += Math.max(0, length - 1);
+            visits += length;
+            stops[stop.ordinal()]++;
+            if (length >= lengthCounts.length) {
+                lengthCounts = Arrays.copyOf(lengthCounts, Math.max(lengthCounts.length * 2, length + 1));
+            }
+            lengthCounts[length]++;
+            maxLength = Math.max(maxLength, length);
+        }
+
+        private void merge(Stats other) {
+            walks += other.walks;
+            steps += other.steps;
+            visits += other.visits;
+            for (int i = 0; i < stops.length; i++) stops[i] += other.stops[i];
+            if (other.maxLength >= lengthCounts.length) {
+                lengthCounts = Arrays.copyOf(lengthCounts, other.maxLength + 1);
+            }
+            for (int length = 0; length <= other.maxLength; length++) {
+                lengthCounts[length] += other.lengthCounts[length];
+            }
+            maxLength = Math.max(maxLength, other.maxLength);
+        }
+
+        long walks() { return walks; }
+        long steps() { return steps; }
+        long stops(Stop stop) { return stops[stop.ordinal()]; }
+        int maxLength() { return maxLength; }
+        double seconds() { return nanos / 1e9; }
+
+        double walksPerSecond() {
+            return walks / Math.max(seconds(), 1e-9);
+        }
+
+        double meanLength() {
+            return walks == 0 ? 0 : (double) visits / walks;
+        }
+
+        /**
+         * @return The smallest length that at least the given fraction of walks do not exceed (0 if no walks).
+         */
+        int lengthPercentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * walks);
+            long seen = 0;
+            for (int length = 0; length <= maxLength; length++) {
+                seen += lengthCounts[length];
+                if (seen >= Math.max(1, rank)) return length;
+            }
+            return maxLength;
+        }
+
+        int minLength() {
+            for (int length = 0; length <= maxLength; length++) {
+                if (lengthCounts[length] > 0) return length;
+            }
+            return 0;
+        }
+
+        /**
+         * @return Walks per power-of-two length bucket: entry k counts lengths in [2^k, 2^(k+1)).
+         */
+        long[] lengthHistogram() {
+            long[] buckets = new long[32 - Integer.numberOfLeadingZeros(Math.max(1, maxLength))];
+            for (int length = 1; length <= maxLength; length++) {
+                buckets[31 - Integer.numberOfLeadingZeros(length)] += lengthCounts[length];
+            }
+            return buckets;
+        }
+    }
+
+    private final GraphSnapshot snapshot;
+    private final AliasTable aliasTable; // Null for uniform walks
+    private final ThreadLocal<Walker> walkers;
+
+    RandomWalkEngine(GraphSnapshot snapshot) {
+        this(snapshot, Sampling.UNIFORM);
+    }
+
+    RandomWalkEngine(GraphSnapshot snapshot, Sampling sampling) {
+        this.snapshot = snapshot;
+        this.aliasTable = sampling == Sampling.WEIGHTED ? snapshot.aliasTable() : null;
+        this.walkers = ThreadLocal.withInitial(Walker::new);
+    }
+
+    GraphSnapshot getSnapshot() { return snapshot; }
+
+    /**
+     * One walk, reported node by node (the GUI's and the command line's walk).
+     * @param start The start ID.
+     * @param random Source of randomness.
+     * @param stopRequested Polled before every step.
+     * @param visit Receives the visited node IDs, including the final node of a repeated edge.
+     * @return The ID of the repeated edge, -1 for a dead end or -2 if stopped.
+     */
+    int walk(int start, SplittableRandom random, BooleanSupplier stopRequested, IntConsumer visit) {
+        Walker walker = walkers.get();
+        Stop stop = walker.walk(start, random, stopRequested, visit);
+        return stop == Stop.REPEATED_EDGE ? walker.lastEdge : stop == Stop.DEAD_END ? -1 : -2;
+    }
+
+    /**
+     * Runs independent walks in parallel, each from a random start node.
+     * @param walks Number of walks.
+     * @param seed Walk i uses a SplittableRandom derived from seed and i.
+     * @param parallelism Number of worker threads.
+     * @param cancelled Polled before every step; once true, the remaining walks are skipped.
+     * @param listener Receives every finished walk; may be null.
+     * @return The totals; cancelled walks are counted as CANCELLED, skipped ones not at all.
+     */
+    Stats run(long walks, long seed, int parallelism, BooleanSupplier cancelled, WalkListener listener) {
+        Stats total = new Stats();
+        long start = System.nanoTime();
+        if (snapshot.nodeCount() == 0 || walks <= 0) {
+            return total;
+        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, parallelism));
+        try {
+            List<ForkJoinTask<Stats>> tasks = new ArrayList<>();
+            for (long first = 0; first < walks; first += WALKS_PER_TASK) {
+                long from = first;
+                long to = Math.min(walks, first + WALKS_PER_TASK);
+                tasks.add(pool.submit(() -> runRange(from, to, seed, cancelled, listener)));
+            }
+            for (ForkJoinTask<Stats> task : tasks) {
+                total.merge(task.join()); // Partial totals are merged in walk order
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        total.nanos = System.nanoTime() - start;
+        return total;
+    }
+
+    // Walks [from, to) on the calling worker thread
+    private Stats runRange(long from, long to, long seed, BooleanSupplier cancelled, WalkListener listener) {
+        Stats stats = new Stats();
+        Walker walker = walkers.get();
+        for (long i = from; i < to && !cancelled.getAsBoolean(); i++) {
+            SplittableRandom random = new SplittableRandom(seed + i * SEED_GAMMA);
+            Stop stop = walker.walk(random.nextInt(snapshot.nodeCount()), random, cancelled, null);
+            stats.add(walker.length, stop);
+            if (listener != null) {
+                listener.walkFinished(i, walker.nodes, walker.length, stop);
+            }
+        }
+        return stats;
+    }
+
+    // State of one thread: the visited-edge bits and the current walk
+    private final class Walker {
+        private final long[] visited = new long[(snapshot.edgeCount() + 63) >>> 6];
+        private int[] nodes = new int[64];
+        private int[] edges = new int[64];
+        private int length = 0;      // Visited nodes of the current walk
+        private int edgeCount = 0;   // Edges marked by the current walk
+        private int lastEdge = -1;
+
+        Stop walk(int start, SplittableRandom random, BooleanSupplier stopRequested, IntConsumer visit) {
+            length = 0;
+            edgeCount = 0;
+            lastEdge = -1;
+            Stop stop = Stop.CANCELLED;
+            int current = start;
+            try {
+                while (!stopRequested.getAsBoolean()) {
+                    addNode(current, visit);
+                    int degree = snapshot.outDegree(current);
+                    if (degree == 0) {
+                        stop = Stop.DEAD_END;
+                        break;
+                    }
+                    int edge = aliasTable != null ? aliasTable.sample(current, random.nextLong())
+                            : snapshot.outStart(current) + random.nextInt(degree);
+                    if ((visited[edge >>> 6] & (1L << edge)) != 0) {
+                        addNode(snapshot.outTarget(edge), visit);
+                        lastEdge = edge;
+                        stop = Stop.REPEATED_EDGE;
+                        break;
+                    }
+                    visited[edge >>> 6] |= 1L << edge;
+                    if (edgeCount == edges.length) {
+                        edges = Arrays.copyOf(edges, edgeCount * 2);
+                    }
+                    edges[edgeCount++] = edge;
+                    current = snapshot.outTarget(edge);
+                }
+            } finally {
+                for (int i = 0; i < edgeCount; i++) {
+                    visited[edges[i] >>> 6] &= ~(1L << edges[i]); // Leave the bits clear for the next walk
+                }
+            }
+            return stop;
+        }
+
+        private void addNode(int node, IntConsumer visit) {
+            if (length == nodes.length) {
+                nodes = Arrays.copyOf(nodes, length * 2);
+            }
+            nodes[length++] = node;
+            if (visit != null) {
+                visit.accept(node);
+            }
+        }
+    }
+}
+
+// --- Walk Output ---
+/**
+ * Writes random walks to disk off the walking threads. Producers fill 64 KB chunks through a Batch
+ * (one per thread) and hand full chunks to a bounded queue; when the queue is full, a producer waits
+ * for the writer instead of buffering without limit. A background thread drains whatever is queued
+ * and writes it with one gathering write on a FileChannel.
+ * <p>
+ * Output is a sequence of records (one walk each). A record longer than a chunk is handed over in
+ * pieces while its batch holds the record lock, so records from different threads never interleave.
+ * If maxFileBytes is positive, the writer moves on to a new file (name.1.txt, name.2.txt, ...) after a
+ * record that takes the current file past that size.
+ * <p>
+ * Batches and the writer do not throw while walks run: the first I/O error is kept, further output
+ * is dropped, and flush() and close() throw the error.
+ */
+final class WalkOutputWriter implements Closeable {
+    private static final int CHUNK_BYTES = 1 << 16;
+    private static final int QUEUE_CHUNKS = 16; // At most 1 MB waiting for the disk
+    private static final Chunk END = new Chunk(ByteBuffer.allocate(0), true);
+
+    // Bytes handed over by a batch; recordEnd is false if they end inside a record
+    private static final class Chunk {
+        final ByteBuffer bytes;
+        final boolean recordEnd;
+
+        Chunk(ByteBuffer bytes, boolean recordEnd) {
+            this.bytes = bytes;
+            this.recordEnd = recordEnd;
+        }
+    }
+
+    private final File file;
+    private final long maxFileBytes;
+    private final ArrayBlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<>(QUEUE_CHUNKS);
+    private final ReentrantLock recordLock = new ReentrantLock();
+    private final AtomicLong queuedChunks = new AtomicLong();
+    private final Thread writerThread;
+    private final Object progressLock = new Object();
+    private long writtenChunks = 0; // Guarded by progressLock
+    private long bytesWritten = 0; // Guarded by progressLock
+    private int fileCount = 1; // Guarded by progressLock
+    private volatile IOException failure = null;
+    private FileChannel channel; // Writer thread only, after the constructor
+    private long fileBytes = 0; // Writer thread only
+    private boolean closed = false;
+
+    /**
+     * Creates (or truncates) the output file and starts the writer thread.
+     * @param maxFileBytes Size after which output moves on to the next file, or 0 for a single file.
+     */
+    WalkOutputWriter(File file, long maxFileBytes) throws IOException {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.channel = open(file);
+        this.writerThread = new Thread(this::writeQueued, "walk-output");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private static FileChannel open(File file) throws IOException {
+        return FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * @return The name of output file index (0 is the file passed to the constructor).
+     */
+    File fileAt(int index) {
+        if (index == 0) return file;
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String rolled = dot > 0 ? name.substring(0, dot) + "." + index + name.substring(dot) : name + "." + index;
+        return new File(file.getParentFile(), rolled);
+    }
+
+    /**
+     * Collects the output of one producing thread. Not thread-safe: use one per thread.
+     */
+    final class Batch implements Flushable {
+        private ByteBuffer chunk = takeBuffer();
+        private boolean inRecord = false; // Bytes appended since the last endRecord()
+        private boolean holdsRecord = false; // Part of the current record was handed over; recordLock is held
+
+        void append(String text) {
+            append(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        void append(byte[] bytes) {
+            inRecord = true;
+            int offset = 0;
+            while (bytes.length - offset > chunk.remaining()) {
+                int count = chunk.remaining();
+                chunk.put(bytes, offset, count);
+                offset += count;
+                handOver(false);
+            }
+            chunk.put(bytes, offset, bytes.length - offset);
+        }
+
+        void append(byte value) {
+            inRecord = true;
+            if (!chunk.hasRemaining()) {
+                handOver(false);
+            }
+            chunk.put(value);
+        }
+
+        /** Marks the end of a record (walk): output may move on to another file after it. */
+        void endRecord() {
+            inRecord = false;
+            if (holdsRecord) {
+                handOver(true); // The rest of a split record goes out at once to release the lock
+            }
+        }
+
+        /** Hands everything appended so far to the writer. */
+        @Override
+        public void flush() {
+            if (chunk.position() > 0) {
+                handOver(!inRecord);
+            }
+        }
+
+        private void handOver(boolean recordEnd) {
+            if (!holdsRecord) {
+                recordLock.lock();
+            }
+            try {
+                chunk.flip();
+                enqueue(new Chunk(chunk, recordEnd));
+            } finally {
+                holdsRecord = !recordEnd;
+                if (!holdsRecord) {
+                    recordLock.unlock();
+                }
+            }
+            chunk = takeBuffer();
+        }
+    }
+
+    /** @return A new batch for the calling thread. */
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    private ByteBuffer takeBuffer() {
+        ByteBuffer buffer = freeBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(CHUNK_BYTES);
+    }
+
+    // Waits for room in the queue; an interrupt does not lose output, it is kept for the caller
+    private void enqueue(Chunk chunk) {
+        if (chunk != END) {
+            queuedChunks.incrementAndGet();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(chunk);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Writer thread: writes everything queued in one go, until END
+    private void writeQueued() {
+        List<Chunk> pending = new ArrayList<>(QUEUE_CHUNKS);
+        boolean end = false;
+        while (!end) {
+            try {
+                pending.add(queue.take());
+            } catch (InterruptedException e) {
+                continue; // Only close() stops the writer
+            }
+            queue.drainTo(pending);
+            int count = pending.size();
+            if (pending.get(count - 1) == END) {
+                end = true;
+                count--;
+            }
+            long bytes = write(pending, count);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer buffer = pending.get(i).bytes;
+                buffer.clear();
+                freeBuffers.offer(buffer);
+            }
+            pending.clear();
+            synchronized (progressLock) {
+                writtenChunks += count;
+                bytesWritten += bytes;
+                progressLock.notifyAll();
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            if (failure == null) failure = e;
+        }
+    }
+
+    // Writes pending[0, count) unless an earlier write failed; rolls over after a record end
+    private long write(List<Chunk> pending, int count) {
+        if (failure != null || count == 0) {
+            return 0;
+        }
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        long bytes = 0;
+        for (int i = 0; i < count; i++) {
+            buffers[i] = pending.get(i).bytes;
+            bytes += buffers[i].remaining();
+        }
+        try {
+            long left = bytes;
+            while (left > 0) {
+                left -= channel.write(buffers);
+            }
+            fileBytes += bytes;
+            if (maxFileBytes > 0 && fileBytes >= maxFileBytes && pending.get(count - 1).recordEnd) {
+                channel.close();
+                int index;
+                synchronized (progressLock) {
+                    index = fileCount++;
+                }
+                channel = open(fileAt(index));
+                fileBytes = 0;
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        return bytes;
+    }
+
+    /**
+     * Waits until every chunk handed over so far (by any batch) is written.
+     * Batches keep their last partial chunk until their own flush().
+     * @throws IOException The first write error, if any.
+     */
+    void flush() throws IOException {
+        long target = queuedChunks.get();
+        synchronized (progressLock) {
+            while (writtenChunks < target && writerThread.isAlive()) {
+                try {
+                    progressLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while flushing walk output.");
+                }
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Writes everything handed over, closes the file and stops the writer thread.
+     * Batches must be flushed first.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            enqueue(END);
+            boolean interrupted = false;
+            while (writerThread.isAlive()) {
+                try {
+                    writerThread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    long bytesWritten() {
+        synchronized (progressLock) {
+            return bytesWritten;
+        }
+    }
+
+    int fileCount() {
+        synchronized (progressLock) {
+            return fileCount;
+        }
+    }
+}
+
+// --- Shortest Paths ---
+/**
+ * Outcome of one shortest path search on a GraphSnapshot. The text output, the GUI and the DOT
+ * highlighting all read from the same result, so a query costs a single search.
+ * A point-to-point result carries the distance and the path to the target; an all-targets result
+ * carries the distances and the predecessor tree for every node.
+ */
+final class ShortestPathResult {
+    private final GraphSnapshot snapshot;
+    private final int source;
+    private final int target;         // -1 for a search to all nodes
+    private final int distance;       // Distance to the target (Integer.MAX_VALUE if unreachable)
+    private final int[] pathIds;      // Point-to-point: node IDs on the path, null if there is none
+    private final int[] distances;    // All targets: Integer.MAX_VALUE for unreached nodes
+    private final int[] previous;     // All targets: predecessor in the shortest path tree, -1 for none
+    private final int settledCount;   // Nodes settled by the search
+    private List<String> path = null; // Path to the target as words, built on first use
+
+    // Point-to-point result
+    ShortestPathResult(GraphSnapshot snapshot, int source, int target, int distance, int[] pathIds, int settledCount) {
+        this.snapshot = snapshot;
+        this.source = source;
+        this.target = target;
+        this.distance = distance;
+        this.pathIds = pathIds;
+        this.distances = null;
+        this.previous = null;
+        this.settledCount = settledCount;
+    }
+
+    // All-targets result
+    ShortestPathResult(GraphSnapshot snapshot, int source, int[] distances, int[] previous, int settledCount) {
+        this.snapshot = snapshot;
+        this.source = source;
+        this.target = -1;
+        this.distance = Integer.MAX_VALUE;
+        this.pathIds = null;
+        this.distances = distances;
+        this.previous = previous;
+        this.settledCount = settledCount;
+    }
+
+    GraphSnapshot getSnapshot() { return snapshot; }
+    int getSource() { return source; }
+    int getTarget() { return target; }
+    int getSettledCount() { return settledCount; }
+
+    /**
+     * @return True if this is a point-to-point result and the target is reachable.
+     */
+    boolean hasPath() {
+        return pathIds != null;
+    }
+
+    /**
+     * @return The distance to the target, or Integer.MAX_VALUE if there is no path.
+     */
+    int getDistance() {
+        return distance;
+    }
+
+    /**
+     * @return The node IDs on the path to the target, or null if there is none. Not a copy; do not modify.
+     */
+    int[] getPathIds() {
+        return pathIds;
+    }
+
+    /**
+     * @return The path to the target (empty if there is none or this is an all-targets result).
+     */
+    List<String> getPath() {
+        if (path == null) {
+            List<String> words = new ArrayList<>();
+            if (pathIds != null) {
+                for (int id : pathIds) {
+                    words.add(snapshot.wordOf(id));
+                }
+            }
+            path = Collections.unmodifiableList(words);
+        }
+        return path;
+    }
+
+    /**
+     * All-targets results only.
+     * @return The shortest distance to node, or Integer.MAX_VALUE if it is unreachable.
+     */
+    int distance(int node) {
+        return distances[node];
+    }
+
+    /**
+     * All-targets results only.
+     */
+    boolean reaches(int node) {
+        return distances[node] != Integer.MAX_VALUE;
+    }
+
+    /**
+     * All-targets results only.
+     * @return The words on the shortest path from the source to node, or an empty list if there is none.
+     */
+    List<String> pathTo(int node) {
+        if (!reaches(node)) {
+            return Collections.emptyList();
+        }
+        List<String> reversed = new ArrayList<>();
+        int at = node;
+        for (; at != -1; at = previous[at]) {
+            reversed.add(snapshot.wordOf(at));
+            if (at == source) break;
+        }
+        if (at != source) {
+            return Collections.emptyList();
+        }
+        Collections.reverse(reversed);
+        return reversed;
+    }
+}
+
+/**
+ * Dijkstra searches over a GraphSnapshot.
+ * Point-to-point queries stop as soon as the target is settled, or run a bidirectional search that
+ * grows a forward ball from the source over the out-edges and a backward ball from the target over
+ * the in-edges until the two meet; on text graphs both only settle a small part of the nodes.
+ * The all-targets mode settles every reachable node, as before.
+ * The priority queue holds each node at most once and lowers its key in place (decrease-key): an
+ * indexed 4-ary heap, or Dial's bucket queue, which uses that the keys in the queue span at most
+ * maxWeight + 1 consecutive values since edge weights are positive integers. Distance and predecessor arrays and the queues
+ * are kept between queries and only the entries a query touched are reset, so after the first
+ * queries a search allocates nothing and costs time in proportion to the part of the graph it explores.
+ * Not thread-safe: use one engine per thread.
+ */
+final class ShortestPathEngine {
+    enum PointSearch { EARLY_EXIT, BIDIRECTIONAL }
+    enum QueueKind { HEAP, BUCKETS }
+
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    private final GraphSnapshot snapshot;
+    private final QueueKind queueKind;
+    // Forward search state
+    private final int[] forwardDist;
+    private final int[] forwardPrev;    // Predecessor on the path from the source
+    private final NodeQueue forwardQueue;
+    // Backward search state (bidirectional only, allocated on first use)
+    private int[] backwardDist = null;
+    private int[] backwardNext = null;  // Successor on the path to the target
+    private NodeQueue backwardQueue = null;
+    // Nodes whose entries differ from the reset state
+    private int[] touched = new int[16];
+    private int touchedCount = 0;
+
+    ShortestPathEngine(GraphSnapshot snapshot) {
+        // Buckets as long as the bucket array is no larger than the per-node arrays. Shortest paths in text
+        // graphs prefer rare (light) edges, so distances stay small and few empty buckets are scanned.
+        this(snapshot, snapshot.maxWeight() <= snapshot.nodeCount() ? QueueKind.BUCKETS : QueueKind.HEAP);
+    }
+
+    ShortestPathEngine(GraphSnapshot snapshot, QueueKind queueKind) {
+        this.snapshot = snapshot;
+        this.queueKind = queueKind;
+        int n = snapshot.nodeCount();
+        forwardDist = new int[n];
+        forwardPrev = new int[n];
+        Arrays.fill(forwardDist, INFINITY);
+        Arrays.fill(forwardPrev, -1);
+        forwardQueue = newQueue(forwardDist);
+    }
+
+    GraphSnapshot getSnapshot() { return snapshot; }
+    QueueKind getQueueKind() { return queueKind; }
+
+    /**
+     * Shortest paths from source to every reachable node.
+     */
+    ShortestPathResult allTargets(int source) {
+        return tree(source, -1);
+    }
+
+    /**
+     * Shortest paths from source to target and to every node closer to the source than target: a forward
+     * search that stops at target, returned as an all-targets result. The distances of those nodes are
+     * final (others may be tentative or unreached), which is all that is needed to follow every
+     * shortest path back from target.
+     */
+    ShortestPathResult towards(int source, int target) {
+        return tree(source, target);
+    }
+
+    private ShortestPathResult tree(int source, int stopAt) {
+        int settled = forward(source, stopAt, null, null, null);
+        int[] distances = forwardDist.clone();
+        int[] previous = forwardPrev.clone();
+        reset();
+        return new ShortestPathResult(snapshot, source, distances, previous, settled);
+    }
+
+    /**
+     * Shortest paths from source to every reachable node, written to the caller's arrays in the order the
+     * nodes were settled (nondecreasing distance, so every node comes after its predecessor).
+     * Allocates nothing, for callers that run many searches.
+     * @param nodes Receives the reachable node IDs, starting with the source; length nodeCount().
+     * @param distances Receives the distance of nodes[k] at index k.
+     * @param previous Receives the predecessor of nodes[k] at index k (-1 for the source).
+     * @return The number of reachable nodes.
+     */
+    int allTargets(int source, int[] nodes, int[] distances, int[] previous) {
+        int count = forward(source, -1, nodes, null, null);
+        for (int k = 0; k < count; k++) {
+            distances[k] = forwardDist[nodes[k]];
+            previous[k] = forwardPrev[nodes[k]];
+        }
+        reset();
+        return count;
+    }
+
+    /**
+     * Shortest path from source to target.
+     * @param search EARLY_EXIT for a forward search that stops at the target, BIDIRECTIONAL to search
+     *               from both ends.
+     */
+    ShortestPathResult pointToPoint(int source, int target, PointSearch search) {
+        return search == PointSearch.BIDIRECTIONAL
+                ? bidirectional(source, target) : earlyExit(source, target, null, null);
+    }
+
+    /**
+     * Shortest path from source to target that does not use the blocked nodes or edges (the spur searches
+     * of Yen's algorithm). Runs a forward search that stops at the target.
+     * @param blockedNodes Nodes the path may not visit. Can be null.
+     * @param blockedEdges Out-edge indices (see GraphSnapshot.outStart) the path may not use. Can be null.
+     */
+    ShortestPathResult avoiding(int source, int target, BitSet blockedNodes, BitSet blockedEdges) {
+        return earlyExit(source, target, blockedNodes, blockedEdges);
+    }
+
+    private ShortestPathResult earlyExit(int source, int target, BitSet blockedNodes, BitSet blockedEdges) {
+        int settled = forward(source, target, null, blockedNodes, blockedEdges);
+        int distance = forwardDist[target];
+        int[] pathIds = null;
+        if (distance != INFINITY) {
+            int length = 1;
+            for (int at = target; at != source; at = forwardPrev[at]) {
+                length++;
+            }
+            pathIds = new int[length];
+            for (int at = target, i = length - 1; i >= 0; at = forwardPrev[at], i--) {
+                pathIds[i] = at;
+            }
+        }
+        reset();
+        return new ShortestPathResult(snapshot, source, target, distance, pathIds, settled);
+    }
+
+    // Dijkstra from source; stops once stopAt (if not -1) is settled. Records the settled nodes in order
+    // if settleOrder is not null, and skips blocked nodes and edges if those are not null. Returns the
+    // number of settled nodes.
+    private int forward(int source, int stopAt, int[] settleOrder, BitSet blockedNodes, BitSet blockedEdges) {
+        NodeQueue queue = forwardQueue;
+        int settled = 0;
+        forwardDist[source] = 0;
+        touch(source);
+        queue.push(source);
+
+        while (!queue.isEmpty()) {
+            int u = queue.pop();
+            if (settleOrder != null) settleOrder[settled] = u;
+            settled++;
+            if (u == stopAt) break;
+
+            int d = forwardDist[u];
+            for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                int v = snapshot.outTarget(e);
+                if (blockedEdges != null && blockedEdges.get(e)) continue;
+                if (blockedNodes != null && blockedNodes.get(v)) continue;
+                int newDist = d + snapshot.outWeight(e);
+                if (newDist < forwardDist[v]) {
+                    if (forwardDist[v] == INFINITY) {
+                        touch(v);
+                        forwardDist[v] = newDist;
+                        forwardPrev[v] = u;
+                        queue.push(v);
+                    } else {
+                        int oldDist = forwardDist[v];
+                        forwardDist[v] = newDist;
+                        forwardPrev[v] = u;
+                        queue.decrease(v, oldDist);
+                    }
+                }
+            }
+        }
+        queue.clear();
+        return settled;
+    }
+
+    // Bidirectional Dijkstra. best tracks the shortest source-target path seen so far, found when an
+    // edge is relaxed whose other end already has a distance from the opposite side; once the two
+    // smallest open distances add up to at least best, no shorter path can exist.
+    private ShortestPathResult bidirectional(int source, int target) {
+        if (backwardQueue == null) {
+            int n = snapshot.nodeCount();
+            backwardDist = new int[n];
+            backwardNext = new int[n];
+            Arrays.fill(backwardDist, INFINITY);
+            Arrays.fill(backwardNext, -1);
+            backwardQueue = newQueue(backwardDist);
+        }
+        NodeQueue fQueue = forwardQueue;
+        NodeQueue bQueue = backwardQueue;
+        forwardDist[source] = 0;
+        backwardDist[target] = 0;
+        touch(source);
+        touch(target);
+        fQueue.push(source);
+        bQueue.push(target);
+
+        long best = source == target ? 0 : Long.MAX_VALUE;
+        int meetFrom = source; // Best path: source ... meetFrom -> meetTo ... target
+        int meetTo = -1;
+        int settled = 0;
+        // An exhausted side has settled everything it can reach, so best is already final
+        while (!fQueue.isEmpty() && !bQueue.isEmpty()) {
+            int fTop = fQueue.minKey();
+            int bTop = bQueue.minKey();
+            if ((long) fTop + bTop >= best) break;
+
+            settled++;
+            if (fTop <= bTop) {
+                int u = fQueue.pop();
+                for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                    int v = snapshot.outTarget(e);
+                    int newDist = fTop + snapshot.outWeight(e);
+                    if (newDist < forwardDist[v]) {
+                        int oldDist = forwardDist[v];
+                        if (oldDist == INFINITY && backwardDist[v] == INFINITY) touch(v);
+                        forwardDist[v] = newDist;
+                        forwardPrev[v] = u;
+                        if (oldDist == INFINITY) {
+                            fQueue.push(v);
+                        } else {
+                            fQueue.decrease(v, oldDist);
+                        }
+                    }
+                    if (backwardDist[v] != INFINITY && (long) newDist + backwardDist[v] < best) {
+                        best = (long) newDist + backwardDist[v];
+                        meetFrom = u;
+                        meetTo = v;
+                    }
+                }
+            } else {
+                int v = bQueue.pop();
+                for (int e = snapshot.inStart(v); e < snapshot.inEnd(v); e++) {
+                    int u = snapshot.inSource(e);
+                    int newDist = bTop + snapshot.inWeight(e);
+                    if (newDist < backwardDist[u]) {
+                        int oldDist = backwardDist[u];
+                        if (forwardDist[u] == INFINITY && oldDist == INFINITY) touch(u);
+                        backwardDist[u] = newDist;
+                        backwardNext[u] = v;
+                        if (oldDist == INFINITY) {
+                            bQueue.push(u);
+                        } else {
+                            bQueue.decrease(u, oldDist);
+                        }
+                    }
+                    if (forwardDist[u] != INFINITY && (long) forwardDist[u] + newDist < best) {
+                        best = (long) forwardDist[u] + newDist;
+                        meetFrom = u;
+                        meetTo = v;
+                    }
+                }
+            }
+        }
+        fQueue.clear();
+        bQueue.clear();
+
+        int[] pathIds = null;
+        if (best != Long.MAX_VALUE) {
+            int prefix = 1;
+            for (int at = meetFrom; at != source; at = forwardPrev[at]) {
+                prefix++;
+            }
+            int suffix = 0;
+            for (int at = meetTo; at != -1; at = backwardNext[at]) {
+                suffix++;
+            }
+            pathIds = new int[prefix + suffix];
+            for (int at = meetFrom, i = prefix - 1; i >= 0; at = forwardPrev[at], i--) {
+                pathIds[i] = at;
+            }
+            for (int at = meetTo, i = prefix; at != -1; at = backwardNext[at], i++) {
+                pathIds[i] = at;
+            }
+        }
+        reset();
+        return new ShortestPathResult(snapshot, source, target, best == Long.MAX_VALUE ? INFINITY : (int) best,
+                pathIds, settled);
+    }
+
+    private NodeQueue newQueue(int[] keys) {
+        return queueKind == QueueKind.BUCKETS
+                ? new BucketQueue(keys, snapshot.maxWeight())
+                : new IndexedHeap(keys);
+    }
+
+    private void touch(int node) {
+        if (touchedCount == touched.length) {
+            touched = Arrays.copyOf(touched, touchedCount * 2);
+        }
+        touched[touchedCount++] = node;
+    }
+
+    // Restores the touched entries, so the next query starts from a clean state without an O(N) fill
+    private void reset() {
+        for (int i = 0; i < touchedCount; i++) {
+            int node = touched[i];
+            forwardDist[node] = INFINITY;
+            forwardPrev[node] = -1;
+            if (backwardDist != null) {
+                backwardDist[node] = INFINITY;
+                backwardNext[node] = -1;
+            }
+        }
+        touchedCount = 0;
+    }
+
+    /**
+     * Monotone priority queue of node IDs keyed by an external distance array. A node is in the queue
+     * at most once; callers change its key in the array, then report the change with decrease().
+     */
+    private abstract static class NodeQueue {
+        final int[] keys;
+
+        NodeQueue(int[] keys) {
+            this.keys = keys;
+        }
+
+        abstract boolean isEmpty();
+        abstract void push(int node);
+        abstract void decrease(int node, int oldKey);
+        abstract int minKey();
+        abstract int pop();
+        abstract void clear(); // Removes the remaining nodes
+    }
+
+    // 4-ary heap with a position index for decrease-key. Keys are copied into the heap next to the
+    // node IDs, so sifting does not chase into the distance array. Ties are broken by node ID.
+    private static final class IndexedHeap extends NodeQueue {
+        private final int[] heap;
+        private final int[] heapKeys;
+        private final int[] position; // Index in heap, -1 if not queued
+        private int size = 0;
+
+        IndexedHeap(int[] keys) {
+            super(keys);
+            heap = new int[keys.length];
+            heapKeys = new int[keys.length];
+            position = new int[keys.length];
+            Arrays.fill(position, -1);
+        }
+
+        @Override boolean isEmpty() { return size == 0; }
+
+        @Override void push(int node) {
+            siftUp(size++, node, keys[node]);
+        }
+
+        @Override void decrease(int node, int oldKey) {
+            siftUp(position[node], node, keys[node]);
+        }
+
+        @Override int minKey() { return heapKeys[0]; }
+
+        @Override int pop() {
+            int top = heap[0];
+            position[top] = -1;
+            if (--size > 0) {
+                siftDown(0, heap[size], heapKeys[size]);
+            }
+            return top;
+        }
+
+        @Override void clear() {
+            for (int i = 0; i < size; i++) {
+                position[heap[i]] = -1;
+            }
+            size = 0;
+        }
+
+        // Moves (node, key) up from slot i to its place
+        private void siftUp(int i, int node, int key) {
+            while (i > 0) {
+                int parent = (i - 1) >>> 2;
+                int parentKey = heapKeys[parent];
+                if (parentKey < key || (parentKey == key && heap[parent] < node)) break;
+                place(i, heap[parent], parentKey);
+                i = parent;
+            }
+            place(i, node, key);
+        }
+
+        // Moves (node, key) down from slot i to its place
+        private void siftDown(int i, int node, int key) {
+            while (true) {
+                int first = 4 * i + 1;
+                if (first >= size) break;
+                int best = first;
+                int last = Math.min(first + 4, size);
+                for (int c = first + 1; c < last; c++) {
+                    if (heapKeys[c] < heapKeys[best] || (heapKeys[c] == heapKeys[best] && heap[c] < heap[best])) best = c;
+                }
+                if (key < heapKeys[best] || (key == heapKeys[best] && node < heap[best])) break;
+                place(i, heap[best], heapKeys[best]);
+                i = best;
+            }
+            place(i, node, key);
+        }
+
+        private void place(int i, int node, int key) {
+            heap[i] = node;
+            heapKeys[i] = key;
+            position[node] = i;
+        }
+    }
+
+    // Dial's algorithm: keys in the queue lie in [cursor, cursor + maxWeight], so maxWeight + 1 circular
+    // buckets of doubly linked node lists are enough. Push, decrease and pop are O(1) plus the scan
+    // over empty buckets, which adds up to at most the largest distance settled.
+    private static final class BucketQueue extends NodeQueue {
+        private final int[] heads;     // First node per bucket, -1 if empty
+        private final int[] next;
+        private final int[] previous;
+        private final boolean[] queued;
+        private int cursor = 0;        // No queued key is smaller; 0 at the start of a search
+        private int size = 0;
+
+        BucketQueue(int[] keys, int maxWeight) {
+            super(keys);
+            heads = new int[maxWeight + 1];
+            next = new int[keys.length];
+            previous = new int[keys.length];
+            queued = new boolean[keys.length];
+            Arrays.fill(heads, -1);
+        }
+
+        @Override boolean isEmpty() { return size == 0; }
+
+        @Override void push(int node) {
+            link(node, keys[node]); // Keys pushed are never below the last popped key, i.e. the cursor
+            queued[node] = true;
+            size++;
+        }
+
+        @Override void decrease(int node, int oldKey) {
+            unlink(node, oldKey);
+            link(node, keys[node]);
+        }
+
+        @Override int minKey() {
+            while (heads[cursor % heads.length] == -1) {
+                cursor++;
+            }
+            return cursor;
+        }
+
+        @Override int pop() {
+            int node = heads[minKey() % heads.length];
+            unlink(node, cursor);
+            queued[node] = false;
+            size--;
+            return node;
+        }
+
+        @Override void clear() {
+            for (int b = 0; b < heads.length && size > 0; b++) {
+                for (int node = heads[b]; node != -1; node = next[node]) {
+                    queued[node] = false;
+                    size--;
+                }
+                heads[b] = -1;
+            }
+            cursor = 0;
+        }
+
+        private void link(int node, int key) {
+            int bucket = key % heads.length;
+            int head = heads[bucket];
+            next[node] = head;
+            previous[node] = -1;
+            if (head != -1) previous[head] = node;
+            heads[bucket] = node;
+        }
+
+        private void unlink(int node, int key) {
+            int bucket = key % heads.length;
+            if (previous[node] == -1) {
+                heads[bucket] = next[node];
+            } else {
+                next[previous[node]] = next[node];
+            }
+            if (next[node] != -1) previous[next[node]] = previous[node];
+        }
+    }
+}
+
+// --- Path Enumeration ---
+/**
+ * Enumerates several paths between two nodes, lazily as streams, so that only the paths actually
+ * consumed are built:
+ * - all shortest paths: every path of minimal total weight, not only the one the predecessor tree
+ *   picks. One search from the source gives the final distances of all nodes up to the target; the
+ *   edges u -> v with dist(u) + w = dist(v) form the shortest path DAG, which is walked backwards
+ *   from the target with an explicit stack. Every such edge leads back to the source, so each step
+ *   of the walk ends in a path and memory stays proportional to the path length, however many
+ *   paths there are.
+ * - k shortest paths: loopless paths in order of total weight (Yen's algorithm). Each further path
+ *   costs one blocked search per node of the previous path.
+ * Streams use the given engine while they are consumed; like the engine, they are not thread-safe.
+ */
+final class PathEnumerator {
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    private final ShortestPathEngine engine;
+    private final GraphSnapshot snapshot;
+
+    PathEnumerator(ShortestPathEngine engine) {
+        this.engine = engine;
+        this.snapshot = engine.getSnapshot();
+    }
+
+    /**
+     * All shortest paths from source to target, as point-to-point results with equal distances.
+     * Empty if the target is unreachable. The number of paths can grow exponentially with their length,
+     * so callers should limit the stream.
+     */
+    Stream<ShortestPathResult> allShortestPaths(int source, int target) {
+        ShortestPathResult tree = engine.towards(source, target);
+        if (!tree.reaches(target)) {
+            return Stream.empty();
+        }
+        return stream(new Iterator<ShortestPathResult>() {
+            // path[0] = target ... path[depth - 1]; cursor[i] is the next in-edge slot of path[i] to try
+            private int[] path = {target};
+            private int[] cursor = {snapshot.inStart(target)};
+            private int depth = 1;
+            private ShortestPathResult next = source == target ? build(tree, path, 1) : advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public ShortestPathResult next() {
+                if (next == null) throw new NoSuchElementException();
+                ShortestPathResult result = next;
+                depth--; // Backtrack from the source
+                next = depth > 0 ? advance() : null;
+                return result;
+            }
+
+            // Extends the path along tight in-edges until it reaches the source, backtracking from
+            // nodes that have no untried ones left. Returns null when the DAG is exhausted.
+            private ShortestPathResult advance() {
+                while (depth > 0) {
+                    int v = path[depth - 1];
+                    int distV = tree.distance(v);
+                    int u = -1;
+                    while (cursor[depth - 1] < snapshot.inEnd(v)) {
+                        int slot = cursor[depth - 1]++;
+                        int candidate = snapshot.inSource(slot);
+                        int distU = tree.distance(candidate);
+                        // distU < distV <= dist(target), so distU is final
+                        if (distU != INFINITY && distU + snapshot.inWeight(slot) == distV) {
+                            u = candidate;
+                            break;
+                        }
+                    }
+                    if (u == -1) {
+                        depth--;
+                        continue;
+                    }
+                    if (depth == path.length) {
+                        path = Arrays.copyOf(path, depth * 2);
+                        cursor = Arrays.copyOf(cursor, depth * 2);
+                    }
+                    path[depth] = u;
+                    cursor[depth] = snapshot.inStart(u);
+                    depth++;
+                    if (u == source) {
+                        return build(tree, path, depth);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    // Turns the reversed path[0 .. length) (target first) into a point-to-point result
+    private ShortestPathResult build(ShortestPathResult tree, int[] path, int length) {
+        int[] pathIds = new int[length];
+        for (int i = 0; i < length; i++) {
+            pathIds[i] = path[length - 1 - i];
+        }
+        return new ShortestPathResult(snapshot, pathIds[0], path[0], tree.distance(path[0]), pathIds,
+                tree.getSettledCount());
+    }
+
+    /**
+     * Loopless paths from source to target in order of nondecreasing total weight (ties in order of
+     * node IDs), starting with a shortest path. Use limit(k) for the k shortest paths.
+     * Empty if the target is unreachable.
+     */
+    Stream<ShortestPathResult> shortestPathsInOrder(int source, int target) {
+        ShortestPathResult first = engine.avoiding(source, target, null, null);
+        if (!first.hasPath()) {
+            return Stream.empty();
+        }
+        return stream(new Iterator<ShortestPathResult>() {
+            private final List<int[]> accepted = new ArrayList<>();
+            private final PriorityQueue<Candidate> candidates = new PriorityQueue<>();
+            private final Set<Candidate> seen = new HashSet<>();
+            private final BitSet blockedNodes = new BitSet(snapshot.nodeCount());
+            private final BitSet blockedEdges = new BitSet();
+            private ShortestPathResult next = first;
+
+            {
+                seen.add(new Candidate(first.getPathIds(), first.getDistance()));
+            }
+
+            @Override
+            public boolean hasNext() {
+                if (next == null && !accepted.isEmpty()) {
+                    addCandidates(accepted.get(accepted.size() - 1));
+                    Candidate best = candidates.poll();
+                    if (best != null) {
+                        next = new ShortestPathResult(snapshot, source, target, best.weight, best.nodes, 0);
+                    } else {
+                        accepted.clear(); // No more paths
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public ShortestPathResult next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                ShortestPathResult result = next;
+                accepted.add(result.getPathIds());
+                next = null;
+                return result;
+            }
+
+            // Deviations from the last accepted path: for each spur node, the root path up to it followed
+            // by a shortest path to the target that avoids the root's nodes and every edge an accepted
+            // path with the same root takes next
+            private void addCandidates(int[] last) {
+                int rootWeight = 0;
+                blockedNodes.clear();
+                for (int i = 0; i < last.length - 1; i++) {
+                    int spur = last[i];
+                    blockedEdges.clear();
+                    for (int[] path : accepted) {
+                        if (path.length > i + 1 && samePrefix(path, last, i + 1)) {
+                            blockedEdges.set(edgeIndex(path[i], path[i + 1]));
+                        }
+                    }
+                    ShortestPathResult spurPath = engine.avoiding(spur, target, blockedNodes, blockedEdges);
+                    if (spurPath.hasPath()) {
+                        int[] spurIds = spurPath.getPathIds();
+                        int[] nodes = Arrays.copyOf(last, i + spurIds.length);
+                        System.arraycopy(spurIds, 0, nodes, i, spurIds.length);
+                        Candidate candidate = new Candidate(nodes, rootWeight + spurPath.getDistance());
+                        if (seen.add(candidate)) {
+                            candidates.add(candidate);
+                        }
+                    }
+                    blockedNodes.set(spur);
+                    rootWeight += snapshot.outWeight(edgeIndex(spur, last[i + 1]));
+                }
+            }
+        });
+    }
+
+    private static boolean samePrefix(int[] a, int[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) return false;
+        }
+        return true;
+    }
+
+    // Index of the edge u -> v in the out-edge arrays
+    private int edgeIndex(int u, int v) {
+        for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+            if (snapshot.outTarget(e) == v) return e;
+        }
+        throw new IllegalArgumentException("No edge " + snapshot.wordOf(u) + " -> " + snapshot.wordOf(v));
+    }
+
+    private static Stream<ShortestPathResult> stream(Iterator<ShortestPathResult> iterator) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    // A candidate path of Yen's algorithm; equal if the node sequences are equal
+    private static final class Candidate implements Comparable<Candidate> {
+        final int[] nodes;
+        final int weight;
+
+        Candidate(int[] nodes, int weight) {
+            this.nodes = nodes;
+            this.weight = weight;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            if (weight != other.weight) return Integer.compare(weight, other.weight);
+            for (int i = 0; i < Math.min(nodes.length, other.nodes.length); i++) {
+                if (nodes[i] != other.nodes[i]) return Integer.compare(nodes[i], other.nodes[i]);
+            }
+            return Integer.compare(nodes.length, other.nodes.length);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Candidate && Arrays.equals(nodes, ((Candidate) o).nodes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(nodes);
+        }
+    }
+}
+
+// --- All-Pairs Shortest Paths ---
+/**
+ * Precomputed shortest path distances and next hops for every pair of nodes of a GraphSnapshot.
+ * One search per source node, run in parallel with a ShortestPathEngine per worker. Small graphs are
+ * stored as two N x N int matrices; larger ones as sparse per-source rows that only hold the reachable
+ * targets (sorted by ID, found by binary search; a row that reaches every node is indexed by ID
+ * directly). A query is a table lookup for the distance plus one next-hop lookup per step of the path.
+ * Tables that would take more than half of the maximum heap are refused.
+ * Tables can be saved next to the input file (input.apsp) and loaded again as long as the input file
+ * and the graph built from it are unchanged.
+ */
+final class AllPairsShortestPaths {
+    static final int DENSE_MAX_NODES = 2048;          // Two 2048 x 2048 int matrices are 32 MB
+    static final String FILE_SUFFIX = ".apsp";
+
+    private static final int MAGIC = 0x54474150;     // "TGAP"
+    private static final int FORMAT_VERSION = 1;
+    private static final int INFINITY = Integer.MAX_VALUE;
+
+    private final GraphSnapshot snapshot;
+    private final int n;
+    // Dense layout: entry u * n + v
+    private final int[] denseDist;
+    private final int[] denseHop;
+    // Sparse layout: row u holds the targets reachable from u (ascending) with their distances and next
+    // hops; rowTargets[u] is null if u reaches every node, and the row is indexed by target ID
+    private final int[][] rowTargets;
+    private final int[][] rowDist;
+    private final int[][] rowHop;
+
+    private AllPairsShortestPaths(GraphSnapshot snapshot, int[] denseDist, int[] denseHop,
+                                  int[][] rowTargets, int[][] rowDist, int[][] rowHop) {
+        this.snapshot = snapshot;
+        this.n = snapshot.nodeCount();
+        this.denseDist = denseDist;
+        this.denseHop = denseHop;
+        this.rowTargets = rowTargets;
+        this.rowDist = rowDist;
+        this.rowHop = rowHop;
+    }
+
+    /**
+     * Runs a search from every node.
+     * @param parallelism Number of worker threads.
+     * @throws IllegalStateException If the tables would take more than half of the maximum heap.
+     */
+    static AllPairsShortestPaths compute(GraphSnapshot snapshot, int parallelism) {
+        return compute(snapshot, parallelism, () -> false, null);
+    }
+
+    /**
+     * Runs a search from every node, checking for cancellation and reporting progress as it goes.
+     * @param parallelism Number of worker threads.
+     * @param cancelled Checked every few hundred sources.
+     * @param progress Receives the percentage of sources started (can be null).
+     * @throws IllegalStateException If the tables would take more than half of the maximum heap.
+     * @throws CancellationException If cancelled returned true.
+     */
+    static AllPairsShortestPaths compute(GraphSnapshot snapshot, int parallelism, BooleanSupplier cancelled,
+                                         IntConsumer progress) {
+        int n = snapshot.nodeCount();
+        long budgetBytes = Runtime.getRuntime().maxMemory() / 2;
+        boolean dense = n <= DENSE_MAX_NODES;
+        if (dense && 8L * n * n > budgetBytes) {
+            throw new IllegalStateException("Not enough memory for the all-pairs tables of " + n + " nodes.");
+        }
+        int[] denseDist = dense ? new int[n * n] : null;
+        int[] denseHop = dense ? new int[n * n] : null;
+        if (dense) {
+            Arrays.fill(denseDist, INFINITY);
+            Arrays.fill(denseHop, -1);
+        }
+        int[][] rowTargets = dense ? null : new int[n][];
+        int[][] rowDist = dense ? null : new int[n][];
+        int[][] rowHop = dense ? null : new int[n][];
+
+        AtomicInteger nextSource = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        int workers = Math.max(1, Math.min(parallelism, n));
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(workers);
+            for (int w = 0; w < workers; w++) {
+                tasks.add(pool.submit(() -> {
+                    ShortestPathEngine engine = new ShortestPathEngine(snapshot);
+                    int[] nodes = new int[n];
+                    int[] distances = new int[n];
+                    int[] previous = new int[n];
+                    int[] hopOf = new int[n];   // Next hop per node, filled in settle order
+                    int[] distOf = new int[n];
+                    int source;
+                    while ((source = nextSource.getAndIncrement()) < n) {
+                        if ((source & 0xFF) == 0) {
+                            if (cancelled.getAsBoolean()) throw new CancellationException();
+                            if (progress != null) progress.accept((int) (100L * source / n));
+                        }
+                        int count = engine.allTargets(source, nodes, distances, previous);
+                        // A node's predecessor is settled before it, so its next hop is already known
+                        hopOf[source] = -1;
+                        for (int k = 1; k < count; k++) {
+                            int prev = previous[k];
+                            hopOf[nodes[k]] = prev == source ? nodes[k] : hopOf[prev];
+                        }
+                        if (dense) {
+                            int row = source * n;
+                            for (int k = 0; k < count; k++) {
+                                denseDist[row + nodes[k]] = distances[k];
+                                denseHop[row + nodes[k]] = hopOf[nodes[k]];
+                            }
+                        } else {
+                            boolean full = count == n;
+                            if (bytes.addAndGet((full ? 8L : 12L) * count) > budgetBytes) {
+                                throw new IllegalStateException("Not enough memory for the all-pairs tables of "
+                                        + n + " nodes (" + bytes.get() / (1024 * 1024) + " MB so far).");
+                            }
+                            for (int k = 0; k < count; k++) {
+                                distOf[nodes[k]] = distances[k];
+                            }
+                            int[] targets = full ? null : Arrays.copyOf(nodes, count);
+                            if (!full) {
+                                Arrays.sort(targets);
+                            }
+                            int[] dist = new int[count];
+                            int[] hop = new int[count];
+                            for (int k = 0; k < count; k++) {
+                                int target = full ? k : targets[k];
+                                dist[k] = distOf[target];
+                                hop[k] = hopOf[target];
+                            }
+                            rowTargets[source] = targets;
+                            rowDist[source] = dist;
+                            rowHop[source] = hop;
+                        }
+                    }
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                task.join();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return new AllPairsShortestPaths(snapshot, denseDist, denseHop, rowTargets, rowDist, rowHop);
+    }
+
+    GraphSnapshot getSnapshot() { return snapshot; }
+    boolean isDense() { return denseDist != null; }
+
+    /**
+     * @return The number of stored (source, target) entries.
+     */
+    long entryCount() {
+        if (isDense()) {
+            return (long) n * n;
+        }
+        long total = 0;
+        for (int[] row : rowDist) {
+            total += row.length;
+        }
+        return total;
+    }
+
+    /**
+     * @return The shortest distance from u to v, or Integer.MAX_VALUE if v is unreachable.
+     */
+    int distance(int u, int v) {
+        if (isDense()) {
+            return denseDist[u * n + v];
+        }
+        int k = rowTargets[u] == null ? v : Arrays.binarySearch(rowTargets[u], v);
+        return k < 0 ? INFINITY : rowDist[u][k];
+    }
+
+    /**
+     * @return The node after u on a shortest path from u to v, or -1 if u == v or v is unreachable.
+     */
+    int nextHop(int u, int v) {
+        if (isDense()) {
+            return denseHop[u * n + v];
+        }
+        int k = rowTargets[u] == null ? v : Arrays.binarySearch(rowTargets[u], v);
+        return k < 0 ? -1 : rowHop[u][k];
+    }
+
+    /**
+     * Answers a point-to-point query from the tables by following next hops from source.
+     */
+    ShortestPathResult query(int source, int target) {
+        int distance = distance(source, target);
+        int[] pathIds = null;
+        if (distance != INFINITY) {
+            int length = 1;
+            for (int at = source; at != target; at = nextHop(at, target)) {
+                length++;
+            }
+            pathIds = new int[length];
+            int i = 0;
+            for (int at = source; at != target; at = nextHop(at, target)) {
+                pathIds[i++] = at;
+            }
+            pathIds[i] = target;
+        }
+        return new ShortestPathResult(snapshot, source, target, distance, pathIds, 0);
+    }
+
+    // --- Persistence ---
+
+    /**
+     * @return The table file that belongs to an input file (input path + ".apsp").
+     */
+    static File fileFor(File input) {
+        return new File(input.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Writes the tables, tagged with the input file's size and modification time and a fingerprint
+     * of the graph, so stale files are recognized when loading.
+     */
+    void save(File file, File input) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            buffer.putInt(MAGIC).putInt(FORMAT_VERSION)
+                  .putLong(input.length()).putLong(input.lastModified())
+                  .putLong(fingerprint(snapshot)).putInt(n).put((byte) (isDense() ? 0 : 1));
+            if (isDense()) {
+                putInts(channel, buffer, denseDist, 0, denseDist.length);
+                putInts(channel, buffer, denseHop, 0, denseHop.length);
+            } else {
+                for (int u = 0; u < n; u++) {
+                    putInts(channel, buffer, new int[] {rowDist[u].length}, 0, 1);
+                    if (rowTargets[u] != null) { // Full rows are written without target IDs
+                        putInts(channel, buffer, rowTargets[u], 0, rowTargets[u].length);
+                    }
+                    putInts(channel, buffer, rowDist[u], 0, rowDist[u].length);
+                    putInts(channel, buffer, rowHop[u], 0, rowHop[u].length);
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Loads tables saved for this input file and graph.
+     * @return The tables, or null if the file does not exist or belongs to another version of the input.
+     */
+    static AllPairsShortestPaths load(File file, File input, GraphSnapshot snapshot) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < 37) {
+                return null;
+            }
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (data.getInt() != MAGIC || data.getInt() != FORMAT_VERSION
+                    || data.getLong() != input.length() || data.getLong() != input.lastModified()
+                    || data.getLong() != fingerprint(snapshot) || data.getInt() != snapshot.nodeCount()) {
+                return null; // Written for something else; will be recomputed
+            }
+            int n = snapshot.nodeCount();
+            boolean dense = data.get() == 0;
+            try {
+                if (dense) {
+                    int[] dist = new int[n * n];
+                    int[] hop = new int[n * n];
+                    data.asIntBuffer().get(dist);
+                    data.position(data.position() + 4 * dist.length);
+                    data.asIntBuffer().get(hop);
+                    return new AllPairsShortestPaths(snapshot, dist, hop, null, null, null);
+                }
+                int[][] targets = new int[n][];
+                int[][] dist = new int[n][];
+                int[][] hop = new int[n][];
+                for (int u = 0; u < n; u++) {
+                    int count = data.getInt();
+                    targets[u] = count == n ? null : getInts(data, count);
+                    dist[u] = getInts(data, count);
+                    hop[u] = getInts(data, count);
+                }
+                return new AllPairsShortestPaths(snapshot, null, null, targets, dist, hop);
+            } catch (BufferUnderflowException | NegativeArraySizeException e) {
+                throw new IOException("Truncated all-pairs table: " + file, e);
+            }
+        }
+    }
+
+    // CRC32 over the words in ID order and the out-edges; IDs follow the graph's map order
+    static long fingerprint(GraphSnapshot snapshot) {
+        CRC32 crc = new CRC32();
+        ByteBuffer ints = ByteBuffer.allocate(12);
+        for (int u = 0; u < snapshot.nodeCount(); u++) {
+            crc.update(snapshot.wordOf(u).getBytes(StandardCharsets.UTF_8));
+            crc.update(0);
+            for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                ints.clear();
+                ints.putInt(u).putInt(snapshot.outTarget(e)).putInt(snapshot.outWeight(e));
+                crc.update(ints.array(), 0, 12);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void putInts(FileChannel channel, ByteBuffer buffer, int[] values, int from, int to) throws IOException {
+        int i = from;
+        while (i < to) {
+            if (buffer.remaining() < 4) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                buffer.clear();
+            }
+            int chunk = Math.min(to - i, buffer.remaining() / 4);
+            buffer.asIntBuffer().put(values, i, chunk);
+            buffer.position(buffer.position() + 4 * chunk);
+            i += chunk;
+        }
+    }
+
+    private static int[] getInts(ByteBuffer data, int count) {
+        int[] values = new int[count];
+        data.asIntBuffer().get(values);
+        data.position(data.position() + 4 * count);
+        return values;
+    }
+}
+
+// --- Bridge Word Index ---
+/**
+ * Two-hop index over a GraphSnapshot for bridge word lookups.
+ * For a source word1 the index lists, for every word2 reachable in two steps, the bridge words
+ * word1 -> b -> word2 (in word1's neighbor order, like GraphSnapshot.bridgeWords). Tables are built
+ * lazily, per source, once that source has been looked up often enough that scanning its neighbors
+ * would have cost as much as building its table; from then on a lookup is a single hash probe and does
+ * not depend on node degrees. Tables are kept in LRU order and evicted once the total number of
+ * entries exceeds the budget; sources whose table alone would exceed it are answered by scanning.
+ * The index belongs to one snapshot; DirectedGraph hands out a new one once edges have been added.
+ */
+final class BridgeWordIndex {
+    static final int DEFAULT_MAX_ENTRIES = 1 << 22; // About 16 MB of bridge IDs plus hash slots
+
+    // Two-hop table of one source: open-addressing hash word2 -> run of bridge IDs
+    private static final class SourceTable {
+        final int[] keys;    // word2 ID per slot, -1 for empty
+        final int[] starts;  // Run of bridges for the slot's word2 is [starts[slot], starts[slot] + counts[slot])
+        final int[] counts;
+        final int[] bridges;
+
+        SourceTable(int[] keys, int[] starts, int[] counts, int[] bridges) {
+            this.keys = keys;
+            this.starts = starts;
+            this.counts = counts;
+            this.bridges = bridges;
+        }
+
+        int slotOf(int word2) {
+            int mask = keys.length - 1;
+            int slot = hash(word2) & mask;
+            while (keys[slot] != -1) {
+                if (keys[slot] == word2) return slot;
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        int size() {
+            return bridges.length + 3 * keys.length;
+        }
+    }
+
+    private final GraphSnapshot snapshot;
+    private final int maxEntries;
+    private final LinkedHashMap<Integer, SourceTable> tables = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+    private long cachedEntries = 0;
+    private final int[] twoHopSizes;  // Per source: 0 unknown, -1 over budget, else two-hop count + 1
+    private final int[] scanWork;     // Per source: edges scanned since its table was last built
+
+    BridgeWordIndex(GraphSnapshot snapshot, int maxEntries) {
+        this.snapshot = snapshot;
+        this.maxEntries = maxEntries;
+        this.twoHopSizes = new int[snapshot.nodeCount()];
+        this.scanWork = new int[snapshot.nodeCount()];
+    }
+
+    /**
+     * An index for a newer snapshot of the same graph in which only edge weights changed (same nodes,
+     * edges and IDs): starts with the tables the previous index has built.
+     */
+    BridgeWordIndex(BridgeWordIndex previous, GraphSnapshot snapshot) {
+        this.snapshot = snapshot;
+        this.maxEntries = previous.maxEntries;
+        synchronized (previous) {
+            tables.putAll(previous.tables); // Tables are immutable; LRU order is kept
+            cachedEntries = previous.cachedEntries;
+            twoHopSizes = previous.twoHopSizes.clone();
+            scanWork = previous.scanWork.clone();
+        }
+    }
+
+    GraphSnapshot getSnapshot() { return snapshot; }
+
+    /**
+     * @return The number of bridge words from word1 to word2.
+     */
+    int bridgeCount(int word1, int word2) {
+        SourceTable table = table(word1);
+        if (table == null) {
+            int count = 0;
+            for (int e = snapshot.outStart(word1); e < snapshot.outEnd(word1); e++) {
+                if (snapshot.hasEdge(snapshot.outTarget(e), word2)) count++;
+            }
+            return count;
+        }
+        int slot = table.slotOf(word2);
+        return slot < 0 ? 0 : table.counts[slot];
+    }
+
+    /**
+     * Collects the bridge words b with edges word1 -> b -> word2, in word1's neighbor order.
+     * @param out Buffer that receives bridge IDs; must hold at least outDegree(word1) entries, so that one
+     *            lookup serves the query without asking bridgeCount first.
+     * @return The number of bridge IDs written to out.
+     */
+    int bridgeWords(int word1, int word2, int[] out) {
+        SourceTable table = table(word1);
+        if (table == null) {
+            return snapshot.bridgeWords(word1, word2, out);
+        }
+        int slot = table.slotOf(word2);
+        if (slot < 0) return 0;
+        System.arraycopy(table.bridges, table.starts[slot], out, 0, table.counts[slot]);
+        return table.counts[slot];
+    }
+
+    /**
+     * Picks one of the bridge words from word1 to word2 uniformly at random.
+     * @return The bridge ID, or -1 if there is none.
+     */
+    int randomBridge(int word1, int word2, Random random) {
+        SourceTable table = table(word1);
+        if (table == null) {
+            int[] buffer = new int[snapshot.outDegree(word1)];
+            int count = snapshot.bridgeWords(word1, word2, buffer);
+            return count == 0 ? -1 : buffer[random.nextInt(count)];
+        }
+        int slot = table.slotOf(word2);
+        if (slot < 0) return -1;
+        return table.bridges[table.starts[slot] + random.nextInt(table.counts[slot])];
+    }
+
+    /**
+     * Picks one of the bridge words from word1 to word2 with probability proportional to the weight of
+     * the edge word1 -> bridge, as a weighted random walk from word1 would. Samples word1's out-edges from
+     * the snapshot's alias table until one leads to a bridge; after a few misses the bridges are weighed
+     * directly.
+     * @return The bridge ID, or -1 if there is none.
+     */
+    int weightedBridge(int word1, int word2, Random random) {
+        if (bridgeCount(word1, word2) == 0) {
+            return -1;
+        }
+        AliasTable aliasTable = snapshot.aliasTable();
+        for (int attempt = 0; attempt < 8; attempt++) {
+            int bridge = snapshot.outTarget(aliasTable.sample(word1, random.nextLong()));
+            if (snapshot.hasEdge(bridge, word2)) {
+                return bridge;
+            }
+        }
+        int[] bridges = new int[snapshot.outDegree(word1)];
+        int count = snapshot.bridgeWords(word1, word2, bridges);
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += snapshot.outWeight(snapshot.edgeId(word1, bridges[i]));
+        }
+        long pick = (long) (random.nextDouble() * total);
+        for (int i = 0; i < count - 1; i++) {
+            pick -= snapshot.outWeight(snapshot.edgeId(word1, bridges[i]));
+            if (pick < 0) return bridges[i];
+        }
+        return bridges[count - 1];
+    }
+
+    /**
+     * Builds new text from a sequence of words: a random bridge word (if any) is inserted between
+     * each pair of consecutive words, and the first word is capitalized.
+     * @param words Lowercase words; words not in the graph get no bridges.
+     * @return The words and inserted bridges, separated by single spaces.
+     */
+    String insertBridgeWords(String[] words, Random random) {
+        return insertBridgeWords(words, random, RandomWalkEngine.Sampling.UNIFORM);
+    }
+
+    /**
+     * As above; with WEIGHTED sampling bridges are picked by weightedBridge.
+     */
+    String insertBridgeWords(String[] words, Random random, RandomWalkEngine.Sampling sampling) {
+        StringBuilder newTextBuilder = new StringBuilder();
+        newTextBuilder.append(Character.toUpperCase(words[0].charAt(0))).append(words[0], 1, words[0].length());
+
+        // One index lookup per pair: no list building or neighbor scans once a word's table exists
+        int nextId = snapshot.idOf(words[0]);
+        for (int i = 0; i < words.length - 1; i++) {
+            int id1 = nextId;
+            nextId = snapshot.idOf(words[i + 1]);
+            int bridge = id1 < 0 || nextId < 0 ? -1 : sampling == RandomWalkEngine.Sampling.WEIGHTED
+                    ? weightedBridge(id1, nextId, random) : randomBridge(id1, nextId, random);
+
+            newTextBuilder.append(" "); // Space before next word or bridge word
+            if (bridge >= 0) {
+                // Insert the randomly selected bridge word and a space
+                newTextBuilder.append(snapshot.wordOf(bridge)).append(" ");
+            }
+            newTextBuilder.append(words[i + 1]); // Append the next original word
+        }
+        return newTextBuilder.toString();
+    }
+
+    // Returns the source's table, or null if the lookup should scan. A table costs about twoHop(word1)
+    // to build and a scan about outDegree(word1), so a table is only built once the scans for word1 have
+    // cost as much as building it (at most twice the cost of always scanning, even when tables keep
+    // getting evicted)
+    private synchronized SourceTable table(int word1) {
+        SourceTable table = tables.get(word1);
+        if (table != null) {
+            return table;
+        }
+        if (twoHopSizes[word1] == 0) {
+            long twoHop = 0;
+            for (int e = snapshot.outStart(word1); e < snapshot.outEnd(word1); e++) {
+                twoHop += snapshot.outDegree(snapshot.outTarget(e));
+            }
+            // Bridges plus up to 4 * 3 ints of hash slots per bridge must fit in the budget
+            twoHopSizes[word1] = twoHop * 16 > maxEntries ? -1 : (int) twoHop + 1;
+        }
+        if (twoHopSizes[word1] < 0) {
+            return null;
+        }
+        scanWork[word1] += snapshot.outDegree(word1) + 1;
+        if (scanWork[word1] < twoHopSizes[word1]) {
+            return null;
+        }
+        scanWork[word1] = 0;
+        table = buildTable(word1, twoHopSizes[word1] - 1);
+        tables.put(word1, table);
+        cachedEntries += table.size();
+        Iterator<Map.Entry<Integer, SourceTable>> eldest = tables.entrySet().iterator();
+        while (cachedEntries > maxEntries && tables.size() > 1) {
+            Map.Entry<Integer, SourceTable> entry = eldest.next();
+            cachedEntries -= entry.getValue().size();
+            eldest.remove();
+        }
+        return table;
+    }
+
+    private SourceTable buildTable(int word1, int twoHop) {
+        int capacity = Integer.highestOneBit(Math.max(1, twoHop) * 2 - 1) << 1; // Load factor <= 1/2
+        int mask = capacity - 1;
+        int[] keys = new int[capacity];
+        Arrays.fill(keys, -1);
+        int[] counts = new int[capacity];
+
+        // Pass 1: count the bridges per word2
+        for (int e = snapshot.outStart(word1); e < snapshot.outEnd(word1); e++) {
+            int bridge = snapshot.outTarget(e);
+            for (int f = snapshot.outStart(bridge); f < snapshot.outEnd(bridge); f++) {
+                int word2 = snapshot.outTarget(f);
+                int slot = hash(word2) & mask;
+                while (keys[slot] != -1 && keys[slot] != word2) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = word2;
+                counts[slot]++;
+            }
+        }
+        int[] starts = new int[capacity];
+        int offset = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            starts[slot] = offset;
+            offset += counts[slot];
+        }
+
+        // Pass 2: fill the runs; walking word1's neighbors in order keeps each run in neighbor order
+        int[] bridges = new int[twoHop];
+        int[] fill = starts.clone();
+        for (int e = snapshot.outStart(word1); e < snapshot.outEnd(word1); e++) {
+            int bridge = snapshot.outTarget(e);
+            for (int f = snapshot.outStart(bridge); f < snapshot.outEnd(bridge); f++) {
+                int word2 = snapshot.outTarget(f);
+                int slot = hash(word2) & mask;
+                while (keys[slot] != word2) {
+                    slot = (slot + 1) & mask;
+                }
+                bridges[fill[slot]++] = bridge;
+            }
+        }
+        return new SourceTable(keys, starts, counts, bridges);
+    }
+
+    private static int hash(int id) {
+        int h = id * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
+
+// --- Batch Bridge Word Queries ---
+/**
+ * Evaluates bridge word queries for many (word1, word2) pairs at once.
+ * Pairs are read in blocks, each block is evaluated on a worker of a fork-join pool against a
+ * read-only GraphSnapshot, and finished blocks are handed to the sink in input order while later
+ * blocks are still being evaluated, so input and output are streamed and only a few blocks are in
+ * memory at a time. Results are bridge IDs in flat int arrays; words are only turned into strings
+ * by whoever consumes a block. Each worker thread keeps its own BridgeWordIndex, so hot sources are
+ * answered from two-hop tables without sharing a lock.
+ *
+ * Command line: java BatchBridgeQuery [--load-mode=streaming|parallel|mmap] corpus.txt pairs.txt [out.tsv]
+ * Input: one pair per line, two words split by the same rules as the corpus text (WordTokenizer:
+ * case-insensitive, anything but a letter separates words).
+ * Output: word1 TAB word2 TAB bridge words separated by spaces (empty if there are none), or "?" if
+ * a word is not in the graph. Written to stdout if no output file is given; throughput goes to stderr.
+ */
+final class BatchBridgeQuery {
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    /**
+     * Results of one block of pairs.
+     */
+    static final class Block {
+        private final GraphSnapshot snapshot;
+        private final String[] words1;
+        private final String[] words2;
+        private final int size;
+        private final boolean[] missing;  // word1 or word2 of the pair is not in the graph
+        private final int[] offsets;      // Bridges of pair i are bridges[offsets[i] .. offsets[i + 1])
+        private int[] bridges;
+
+        Block(GraphSnapshot snapshot, String[] words1, String[] words2, int size) {
+            this.snapshot = snapshot;
+            this.words1 = words1;
+            this.words2 = words2;
+            this.size = size;
+            this.missing = new boolean[size];
+            this.offsets = new int[size + 1];
+        }
+
+        int size() { return size; }
+        String word1(int i) { return words1[i]; }
+        String word2(int i) { return words2[i]; }
+        GraphSnapshot getSnapshot() { return snapshot; }
+
+        /**
+         * @return False if word1 or word2 of pair i is not in the graph.
+         */
+        boolean inGraph(int i) {
+            return !missing[i];
+        }
+
+        int bridgeCount(int i) {
+            return offsets[i + 1] - offsets[i];
+        }
+
+        /**
+         * @return The ID of the k-th bridge word of pair i.
+         */
+        int bridge(int i, int k) {
+            return bridges[offsets[i] + k];
+        }
+
+        /**
+         * @return The bridge words of pair i in word1's neighbor order (empty if a word is missing).
+         */
+        List<String> bridgeWords(int i) {
+            List<String> result = new ArrayList<>(bridgeCount(i));
+            for (int k = 0; k < bridgeCount(i); k++) {
+                result.add(snapshot.wordOf(bridge(i, k)));
+            }
+            return result;
+        }
+
+        // Resolves and evaluates every pair of the block
+        private void evaluate(BridgeWordIndex index) {
+            int[] all = new int[Math.max(16, size)];
+            int[] run = new int[16];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                offsets[i] = count;
+                int id1 = snapshot.idOf(words1[i]);
+                int id2 = snapshot.idOf(words2[i]);
+                if (id1 < 0 || id2 < 0) {
+                    missing[i] = true;
+                    continue;
+                }
+                int degree = snapshot.outDegree(id1);
+                if (degree > run.length) {
+                    run = new int[Math.max(run.length * 2, degree)];
+                }
+                int found = index.bridgeWords(id1, id2, run);
+                if (count + found > all.length) {
+                    all = Arrays.copyOf(all, Math.max(all.length * 2, count + found));
+                }
+                System.arraycopy(run, 0, all, count, found);
+                count += found;
+            }
+            offsets[size] = count;
+            bridges = all;
+        }
+    }
+
+    private final GraphSnapshot snapshot;
+    private final int parallelism;
+    private final int blockSize;
+
+    BatchBridgeQuery(GraphSnapshot snapshot, int parallelism, int blockSize) {
+        this.snapshot = snapshot;
+        this.parallelism = Math.max(1, parallelism);
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    /**
+     * Evaluates every pair read from the reader and passes the results to the sink, in input order.
+     * Lines without words are skipped; lines that do not hold exactly two words are skipped with a warning.
+     * @param pairs One pair per line.
+     * @param sink Receives the evaluated blocks on the calling thread.
+     * @return The number of pairs evaluated.
+     */
+    long run(BufferedReader pairs, Consumer<Block> sink) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        ThreadLocal<BridgeWordIndex> indexes = ThreadLocal.withInitial(
+                () -> new BridgeWordIndex(snapshot, BridgeWordIndex.DEFAULT_MAX_ENTRIES / parallelism));
+        ArrayDeque<ForkJoinTask<Block>> inFlight = new ArrayDeque<>();
+        long total = 0;
+        long malformed = 0;
+        List<String> words = new ArrayList<>(2);
+        WordTokenizer tokenizer = new WordTokenizer(words::add);
+        try {
+            String[] words1 = new String[blockSize];
+            String[] words2 = new String[blockSize];
+            int filled = 0;
+            String line;
+            while (true) {
+                line = pairs.readLine();
+                if (line != null) {
+                    words.clear();
+                    char[] chars = line.toCharArray();
+                    tokenizer.feed(chars, 0, chars.length);
+                    tokenizer.finish();
+                    if (words.isEmpty()) continue;
+                    if (words.size() != 2) {
+                        malformed++;
+                        continue;
+                    }
+                    words1[filled] = words.get(0);
+                    words2[filled] = words.get(1);
+                    filled++;
+                }
+                if (filled == blockSize || (line == null && filled > 0)) {
+                    Block block = new Block(snapshot, words1, words2, filled);
+                    inFlight.add(pool.submit(() -> {
+                        block.evaluate(indexes.get());
+                        return block;
+                    }));
+                    total += filled;
+                    words1 = new String[blockSize];
+                    words2 = new String[blockSize];
+                    filled = 0;
+                }
+                // Keep a few blocks per worker in flight; hand finished ones over in order
+                while (!inFlight.isEmpty() && (inFlight.size() > 2 * parallelism || line == null)) {
+                    sink.accept(inFlight.poll().join());
+                }
+                if (line == null) break;
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        if (malformed > 0) {
+            System.err.println("Warning: skipped " + malformed + " lines that do not hold exactly two words.");
+        }
+        return total;
+    }
+
+    /**
+     * Writes a block as tab-separated lines (see the class comment for the format).
+     */
+    static void write(Block block, Writer out) throws IOException {
+        GraphSnapshot snapshot = block.getSnapshot();
+        for (int i = 0; i < block.size(); i++) {
+            out.write(block.word1(i));
+            out.write('\t');
+            out.write(block.word2(i));
+            out.write('\t');
+            if (!block.inGraph(i)) {
+                out.write('?');
+            } else {
+                for (int k = 0; k < block.bridgeCount(i); k++) {
+                    if (k > 0) out.write(' ');
+                    out.write(snapshot.wordOf(block.bridge(i, k)));
+                }
+            }
+            out.write('\n');
+        }
+    }
+
+    /**
+     * Opens the result stream: the file if a path is given, otherwise stdout. Closing the stdout
+     * stream only flushes it, so System.out stays usable.
+     */
+    static OutputStream openOutput(String path) throws IOException {
+        if (path != null) {
+            return new FileOutputStream(path);
+        }
+        return new FilterOutputStream(System.out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len); // FilterOutputStream would write byte by byte
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    public static void main(String[] args) {
+        CommandLineOptions options = new CommandLineOptions(args, "load-mode");
+        GraphBuilder.LoadMode mode = options.getEnum("load-mode", GraphBuilder.LoadMode.STREAMING);
+        List<String> positional = options.getPositional();
+        if (positional.size() < 2 || positional.size() > 3) {
+            System.err.println("Usage: java BatchBridgeQuery [--load-mode=streaming|parallel|mmap] corpus.txt pairs.txt [out.tsv]");
+            System.exit(2);
+        }
+
+        try {
+            GraphSnapshot snapshot = GraphSnapshotFile.loadOrBuild(new File(positional.get(0)),
+                    () -> GraphBuilder.fromFile(positional.get(0), mode)).getGraph().snapshot();
+            BatchBridgeQuery batch = new BatchBridgeQuery(snapshot, Runtime.getRuntime().availableProcessors(), DEFAULT_BLOCK_SIZE);
+            long start = System.nanoTime();
+            long pairs;
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(positional.get(1)), StandardCharsets.UTF_8));
+                 OutputStream target = openOutput(positional.size() == 3 ? positional.get(2) : null);
+                 Writer out = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 1 << 16)) {
+                pairs = batch.run(in, block -> {
+                    try {
+                        write(block, out);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.printf("Processed %d pairs in %.2f s (%.0f pairs/s)%n", pairs, seconds, pairs / Math.max(seconds, 1e-9));
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
+
+// --- Text Tokenization ---
+/**
+ * Streaming word tokenizer. Reads text in fixed-size chunks and classifies characters by hand
+ * instead of lowercasing the whole text and running regex passes over it, so memory use does
+ * not depend on the input size. A word is a maximal run of letters A-Z/a-z (emitted lowercased);
+ * every other character acts as a separator, exactly like the original
+ * toLowerCase / replaceAll("[^a-z\\s]", " ") / split pipeline.
+ * Repeated words are served from a small pool, so only the first occurrence of a word allocates a String.
+ */
+final class WordTokenizer {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Consumer<String> sink;
+    private char[] word = new char[32];
+    private int length = 0;
+
+    // Open-addressing pool of already emitted words (power-of-two capacity)
+    private String[] pool = new String[1024];
+    private int pooled = 0;
+
+    /**
+     * @param sink Receives each word, in text order.
+     */
+    WordTokenizer(Consumer<String> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Tokenizes everything the reader delivers and emits the words to the sink.
+     * @param reader The text source; not closed by this method.
+     * @param sink Receives each word, in text order.
+     */
+    static void tokenize(Reader reader, Consumer<String> sink) throws IOException {
+        WordTokenizer tokenizer = new WordTokenizer(sink);
+        char[] buffer = new char[CHUNK_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            tokenizer.feed(buffer, 0, read);
+        }
+        tokenizer.finish();
+    }
+
+    /**
+     * Feeds the next chunk of text. Words may span chunk boundaries.
+     */
+    void feed(char[] buffer, int offset, int count) {
+        int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            char c = buffer[i];
+            if (c >= 'a' && c <= 'z') {
+                append(c);
+            } else if (c >= 'A' && c <= 'Z') {
+                append((char) (c + ('a' - 'A')));
+            } else if (c < 0x80) {
+                endWord();
+            } else {
+                feedNonAscii(c);
+            }
+        }
+    }
+
+    /**
+     * Feeds UTF-8 encoded bytes [position, limit) of the buffer, without decoding them to chars first.
+     * Only the two multi-byte sequences that can form part of a word need to be recognized; every other
+     * non-ASCII byte is a separator, just as its decoded (or replaced, if malformed) character would be.
+     * The range must not end inside a multi-byte sequence. The buffer's position is not changed.
+     */
+    void feed(ByteBuffer buffer) {
+        int end = buffer.limit();
+        for (int i = buffer.position(); i < end; i++) {
+            byte b = buffer.get(i);
+            if (b >= 'a' && b <= 'z') {
+                append((char) b);
+            } else if (b >= 'A' && b <= 'Z') {
+                append((char) (b + ('a' - 'A')));
+            } else if (b >= 0) {
+                endWord();
+            } else if (b == (byte) 0xC4 && i + 1 < end && buffer.get(i + 1) == (byte) 0xB0) {
+                feedNonAscii('\u0130');
+                i++;
+            } else if (b == (byte) 0xE2 && i + 2 < end
+                    && buffer.get(i + 1) == (byte) 0x84 && buffer.get(i + 2) == (byte) 0xAA) {
+                feedNonAscii('\u212A');
+                i += 2;
+            } else {
+                endWord();
+            }
+        }
+    }
+
+    /**
+     * Handles the two non-ASCII characters whose lowercase form contains a-z.
+     */
+    void feedNonAscii(int codePoint) {
+        if (codePoint == '\u212A') {   // KELVIN SIGN lowercases to 'k'
+            append('k');
+        } else if (codePoint == '\u0130') { // Dotted capital I lowercases to "i" + combining dot; the dot separates
+            append('i');
+            endWord();
+        } else {
+            endWord();
+        }
+    }
+
+    /**
+     * Emits the word in progress, if any. Call once after the last chunk.
+     */
+    void finish() {
+        endWord();
+    }
+
+    private void append(char c) {
+        if (length == word.length) {
+            word = Arrays.copyOf(word, length * 2);
+        }
+        word[length++] = c;
+    }
+
+    private void endWord() {
+        if (length > 0) {
+            sink.accept(intern());
+            length = 0;
+        }
+    }
+
+    // Returns the pooled String equal to the current word, adding it on first sight
+    private String intern() {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + word[i]; // Same as String.hashCode for these chars
+        }
+        int mask = pool.length - 1;
+        int slot = (hash ^ (hash >>> 16)) & mask;
+        String candidate;
+        while ((candidate = pool[slot]) != null) {
+            if (candidate.hashCode() == hash && matches(candidate)) {
+                return candidate;
+            }
+            slot = (slot + 1) & mask;
+        }
+        String result = new String(word, 0, length);
+        pool[slot] = result;
+        if (++pooled * 2 > pool.length) {
+            growPool();
+        }
+        return result;
+    }
+
+    private boolean matches(String candidate) {
+        if (candidate.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (candidate.charAt(i) != word[i]) return false;
+        }
+        return true;
+    }
+
+    private void growPool() {
+        String[] old = pool;
+        pool = new String[old.length * 2];
+        int mask = pool.length - 1;
+        for (String entry : old) {
+            if (entry == null) continue;
+            int hash = entry.hashCode();
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (pool[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            pool[slot] = entry;
+        }
+    }
+}
+
+// --- Graph Construction ---
+/**
+ * Builds a DirectedGraph and the word counts of a text from a stream of words.
+ * Each word is added as it arrives, so the text itself is never held in memory.
+ */
+final class GraphBuilder implements Consumer<String> {
+    private final DirectedGraph graph;
+    private final Map<String, Integer> wordCounts;
+    private String previousWord = null;
+    private long totalWords = 0;
+
+    GraphBuilder() {
+        this(new DirectedGraph(), new HashMap<>());
+    }
+
+    GraphBuilder(DirectedGraph graph, Map<String, Integer> wordCounts) {
+        this.graph = graph;
+        this.wordCounts = wordCounts;
+    }
+
+    /**
+     * A builder for a graph that was loaded in full elsewhere (e.g. from a GraphSnapshotFile).
+     * @param lastWord The text's last word (appended text links to it), or null if it had none.
+     */
+    GraphBuilder(DirectedGraph graph, Map<String, Integer> wordCounts, long totalWords, String lastWord) {
+        this(graph, wordCounts);
+        this.totalWords = totalWords;
+        this.previousWord = lastWord;
+    }
+
+    /**
+     * How fromFile reads its input.
+     */
+    enum LoadMode {
+        /** Single reader, words streamed into the graph (default). */
+        STREAMING,
+        /** File split into byte ranges that are tokenized concurrently and merged. */
+        PARALLEL,
+        /** File memory-mapped and tokenized straight from the mapped bytes. */
+        MMAP
+    }
+
+    // Files smaller than this are always loaded sequentially; splitting them costs more than it saves
+    private static final long MIN_PARALLEL_RANGE_BYTES = 4L * 1024 * 1024;
+    // A single mapping is limited to 2 GB; larger files are mapped in segments of about this size
+    private static final long MAX_MAPPED_SEGMENT_BYTES = 1L << 30;
+
+    /**
+     * Loads a UTF-8 text file with the given mode.
+     * @param filePath Path of the text file.
+     * @param mode How to read the file.
+     * @return The builder holding the graph and word counts.
+     */
+    static GraphBuilder fromFile(String filePath, LoadMode mode) throws IOException {
+        if (mode == LoadMode.PARALLEL) {
+            return fromFileParallel(filePath, Runtime.getRuntime().availableProcessors(), MIN_PARALLEL_RANGE_BYTES);
+        }
+        if (mode == LoadMode.MMAP) {
+            return fromFileMapped(filePath, MAX_MAPPED_SEGMENT_BYTES);
+        }
+        return fromFile(filePath);
+    }
+
+    /**
+     * Memory-maps a UTF-8 text file and tokenizes the mapped bytes directly, skipping the
+     * Reader/char decoding layer entirely. Files beyond segmentBytes are mapped piecewise,
+     * with segments cut at word boundaries.
+     * @param filePath Path of the text file.
+     * @param segmentBytes Target size of one mapping (must stay below 2 GB).
+     * @return The builder holding the graph and word counts.
+     */
+    static GraphBuilder fromFileMapped(String filePath, long segmentBytes) throws IOException {
+        GraphBuilder builder = new GraphBuilder();
+        WordTokenizer tokenizer = new WordTokenizer(builder);
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long[] bounds = splitAtWordBoundaries(channel, (int) ((size + segmentBytes - 1) / segmentBytes));
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                long length = bounds[i + 1] - bounds[i];
+                if (length > 0) {
+                    tokenizer.feed(channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], length));
+                }
+            }
+        }
+        tokenizer.finish();
+        return builder;
+    }
+
+    /**
+     * Reads a UTF-8 text file through the streaming tokenizer and builds its graph.
+     * @param filePath Path of the text file.
+     * @return The builder holding the graph and word counts.
+     */
+    static GraphBuilder fromFile(String filePath) throws IOException {
+        try (InputStream in = new FileInputStream(filePath)) {
+            return fromStream(in);
+        }
+    }
+
+    /**
+     * Reads UTF-8 text from a stream through the streaming tokenizer and builds its graph.
+     * The stream is not closed.
+     * @param in The text.
+     * @return The builder holding the graph and word counts.
+     */
+    static GraphBuilder fromStream(InputStream in) throws IOException {
+        GraphBuilder builder = new GraphBuilder();
+        WordTokenizer.tokenize(new InputStreamReader(in, StandardCharsets.UTF_8), builder);
+        return builder;
+    }
+
+    /**
+     * Builds the graph on a fork-join pool. The file is cut into byte ranges at ASCII non-letter
+     * bytes (never inside a word or a multi-byte UTF-8 sequence); each range is tokenized into a
+     * partial edge count, and the partials are merged in file order with the edge that spans each
+     * range boundary stitched in between. Partials remember the order in which their edges first
+     * appeared and are replayed in that order, so the merged graph is identical to the sequential
+     * one, down to the iteration order of its maps.
+     * @param filePath Path of the text file.
+     * @param parallelism Number of worker threads.
+     * @param minRangeBytes Lower bound for the size of a range.
+     * @return The builder holding the graph and word counts.
+     */
+    static GraphBuilder fromFileParallel(String filePath, int parallelism, long minRangeBytes) throws IOException {
+        long[] bounds;
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            // A few ranges per worker so that uneven ranges still balance out
+            long rangeCount = Math.min(parallelism * 4L, Math.max(1, channel.size() / minRangeBytes));
+            bounds = splitAtWordBoundaries(channel, (int) rangeCount);
+        }
+        if (parallelism <= 1 || bounds.length <= 2) {
+            return fromFile(filePath);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<ForkJoinTask<PartialGraph>> tasks = new ArrayList<>();
+            for (int i = 0; i + 1 < bounds.length; i++) {
+                long start = bounds[i];
+                long end = bounds[i + 1];
+                tasks.add(pool.submit(() -> PartialGraph.tokenizeRange(filePath, start, end)));
+            }
+            GraphBuilder builder = new GraphBuilder();
+            for (ForkJoinTask<PartialGraph> task : tasks) {
+                builder.merge(task.join());
+            }
+            return builder;
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Cuts [0, size) into about rangeCount ranges; every inner bound sits on an ASCII non-letter byte
+    private static long[] splitAtWordBoundaries(FileChannel channel, int rangeCount) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        for (int i = 1; i < rangeCount; i++) {
+            long position = Math.max(size * i / rangeCount, bounds.get(bounds.size() - 1));
+            long boundary = -1;
+            while (boundary < 0 && position < size) {
+                probe.clear();
+                int read = channel.read(probe, position);
+                if (read <= 0) break;
+                for (int j = 0; j < read; j++) {
+                    byte b = probe.get(j);
+                    if (b >= 0 && !isAsciiLetter(b)) {
+                        boundary = position + j;
+                        break;
+                    }
+                }
+                position += read;
+            }
+            if (boundary < 0) break; // One long word up to EOF: the last range takes the rest
+            if (boundary > bounds.get(bounds.size() - 1)) {
+                bounds.add(boundary);
+            }
+        }
+        bounds.add(size);
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static boolean isAsciiLetter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+    }
+
+    /**
+     * Appends a partial result that directly follows everything added so far.
+     */
+    private void merge(PartialGraph partial) {
+        if (partial.firstWord == null) {
+            return; // Range without words
+        }
+        if (previousWord == null) {
+            graph.addNode(partial.firstWord);
+        } else {
+            graph.addEdge(previousWord, partial.firstWord); // Edge across the range boundary
+        }
+        List<String> order = partial.edgeOrder;
+        for (int i = 0; i < order.size(); i += 2) {
+            String source = order.get(i);
+            String target = order.get(i + 1);
+            graph.addEdge(source, target, partial.edgeCounts.get(source).get(target)[0]);
+        }
+        for (Map.Entry<String, int[]> entry : partial.wordCounts.entrySet()) {
+            wordCounts.merge(entry.getKey(), entry.getValue()[0], Integer::sum);
+        }
+        previousWord = partial.lastWord;
+        totalWords += partial.totalWords;
+    }
+
+    /**
+     * Adds the next word of the text: counts it and links it to the previous word.
+     * @param word A lowercase word.
+     */
+    @Override
+    public void accept(String word) {
+        wordCounts.merge(word, 1, Integer::sum);
+        if (previousWord == null) {
+            graph.addNode(word); // First word; also covers single-word texts
+        } else {
+            graph.addEdge(previousWord, word);
+        }
+        previousWord = word;
+        totalWords++;
+    }
+
+    /**
+     * Appends more text to the graph without rebuilding it: only the new text is tokenized. Its first
+     * word is linked to the last word added so far, edge weights and word counts grow in place, and the
+     * graph's version moves on. Once the text is in (also after a read error part way), the graph's
+     * change listeners are told what was added.
+     * The graph is locked while words are added, so snapshot() never sees half an append.
+     * @param text The new text; not closed.
+     * @return What was added.
+     */
+    DirectedGraph.Change append(Reader text) throws IOException {
+        DirectedGraph.Change change;
+        IOException failure = null;
+        synchronized (graph) {
+            long fromVersion = graph.getVersion();
+            int nodesBefore = graph.getNodeCount();
+            int edgesBefore = graph.getEdgeCount();
+            long wordsBefore = totalWords;
+            try {
+                WordTokenizer.tokenize(text, this);
+            } catch (IOException e) {
+                failure = e;
+            }
+            change = new DirectedGraph.Change(fromVersion, graph.getVersion(), totalWords - wordsBefore,
+                    graph.getNodeCount() - nodesBefore, graph.getEdgeCount() - edgesBefore);
+        }
+        if (change.toVersion != change.fromVersion) {
+            graph.fireChanged(change);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return change;
+    }
+
+    public DirectedGraph getGraph() { return graph; }
+    public Map<String, Integer> getWordCounts() { return wordCounts; }
+    public long getTotalWords() { return totalWords; }
+    public String getLastWord() { return previousWord; }
+}
+
+/**
+ * Word and edge counts of one byte range of a file, produced by a parallel graph build.
+ * Counters are int[1] cells so counting does not box.
+ */
+final class PartialGraph implements Consumer<String> {
+    final Map<String, Map<String, int[]>> edgeCounts = new HashMap<>();
+    final List<String> edgeOrder = new ArrayList<>(); // (source, target) pairs in first-occurrence order
+    final Map<String, int[]> wordCounts = new HashMap<>();
+    String firstWord = null;
+    String lastWord = null;
+    long totalWords = 0;
+
+    /**
+     * Tokenizes bytes [start, end) of a UTF-8 file. The range must begin and end on word boundaries.
+     */
+    static PartialGraph tokenizeRange(String filePath, long start, long end) throws IOException {
+        PartialGraph partial = new PartialGraph();
+        WordTokenizer tokenizer = new WordTokenizer(partial);
+        // Malformed input is replaced, as InputStreamReader does in the sequential path
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+        CharBuffer chars = CharBuffer.allocate(64 * 1024);
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long position = start;
+            boolean endOfInput = false;
+            while (!endOfInput) {
+                int limit = (int) Math.min(bytes.remaining(), end - position);
+                bytes.limit(bytes.position() + limit);
+                int read = limit == 0 ? 0 : channel.read(bytes, position);
+                if (read < 0) read = 0;
+                position += read;
+                endOfInput = position >= end || (read == 0 && limit > 0);
+                bytes.flip();
+                decoder.decode(bytes, chars, endOfInput);
+                if (endOfInput) {
+                    decoder.flush(chars);
+                }
+                chars.flip();
+                tokenizer.feed(chars.array(), 0, chars.limit());
+                chars.clear();
+                bytes.compact();
+            }
+        }
+        tokenizer.finish();
+        return partial;
+    }
+
+    @Override
+    public void accept(String word) {
+        int[] count = wordCounts.get(word);
+        if (count == null) {
+            wordCounts.put(word, new int[] {1});
+        } else {
+            count[0]++;
+        }
+        if (lastWord == null) {
+            firstWord = word;
+        } else {
+            Map<String, int[]> targets = edgeCounts.computeIfAbsent(lastWord, k -> new HashMap<>());
+            int[] weight = targets.get(word);
+            if (weight == null) {
+                targets.put(word, new int[] {1});
+                edgeOrder.add(lastWord);
+                edgeOrder.add(word);
+            } else {
+                weight[0]++;
+            }
+        }
+        lastWord = word;
+        totalWords++;
+    }
+}
+
+// --- Graph Snapshot Files ---
+/**
+ * Binary snapshot of a loaded graph and its word counts, saved next to the text file (file name plus
+ * FILE_SUFFIX) so that later loads skip reading and tokenizing the text. Once its header matches the
+ * text file, the payload is memory-mapped and decoded straight into a GraphSnapshot. Layout (big-endian header, then the payload):
+ * <pre>
+ * int magic "TGSN", int format version
+ * long source size, long source modification time, long CRC32 of the source's first and last 64 KB
+ * int nodes, int edges, long total words
+ * long payload length, long payload CRC32
+ * payload, all numbers unsigned LEB128 varints:
+ *   per node: word length, word (UTF-8)
+ *   per node: out-degree, then per out-edge: target ID, weight
+ *   per node: word count
+ *   last word ID + 1 (0 for an empty text), so that appended text links to it
+ * </pre>
+ * Nodes are stored in the graph's map order and edges in neighbor map order, so the restored graph
+ * numbers, iterates and prints its nodes exactly like the one built from the text.
+ * A file written for another version of the source is ignored and replaced.
+ */
+final class GraphSnapshotFile {
+    static final String FILE_SUFFIX = ".tgsnap";
+    private static final int MAGIC = 0x5447534E;     // "TGSN"
+    private static final int FORMAT_VERSION = 2;
+    private static final int HEADER_BYTES = 64;
+    private static final int SAMPLE_BYTES = 64 * 1024; // Hashed from each end of the source
+
+    /** Builds a graph when there is no usable snapshot. */
+    interface Builder {
+        GraphBuilder build() throws IOException;
+    }
+
+    private GraphSnapshotFile() {}
+
+    /**
+     * @return Where the snapshot of the given text file is kept.
+     */
+    static File fileFor(File input) {
+        return new File(input.getPath() + FILE_SUFFIX);
+    }
+
+    /**
+     * Loads the graph of a text file from its snapshot, or builds it and saves a snapshot for next time.
+     * A snapshot that cannot be read or written is reported on stderr and otherwise ignored.
+     * @param input The text file.
+     * @param builder Reads the text file; only called if there is no current snapshot.
+     * @return The builder holding the graph and word counts.
+     */
+    static GraphBuilder loadOrBuild(File input, Builder builder) throws IOException {
+        File file = fileFor(input);
+        long stampHash = sampleHash(input); // Taken before reading, so a concurrent change makes the snapshot stale
+        long stampSize = input.length();
+        long stampModified = input.lastModified();
+        try {
+            GraphBuilder loaded = load(file, input);
+            if (loaded != null) {
+                return loaded;
+            }
+        } catch (IOException e) {
+            System.err.println("Ignoring graph snapshot: " + e.getMessage());
+        }
+        GraphBuilder built = builder.build();
+        try {
+            save(file, built, stampSize, stampModified, stampHash);
+        } catch (IOException e) {
+            System.err.println("Could not save graph snapshot: " + e.getMessage());
+        }
+        return built;
+    }
+
+    private static void save(File file, GraphBuilder builder, long sourceSize, long sourceModified,
+                             long sourceHash) throws IOException {
+        GraphSnapshot snapshot = builder.getGraph().snapshot();
+        Map<String, Integer> wordCounts = builder.getWordCounts();
+        int n = snapshot.nodeCount();
+        // Written to a temporary file first, so readers never see a half-written snapshot
+        File temporary = new File(file.getPath() + ".tmp");
+        CRC32 crc = new CRC32();
+        long payloadBytes;
+        try (FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            VarintWriter out = new VarintWriter(channel, HEADER_BYTES, crc);
+            for (int u = 0; u < n; u++) {
+                byte[] word = snapshot.wordOf(u).getBytes(StandardCharsets.UTF_8);
+                out.putVarint(word.length);
+                out.put(word);
+            }
+            for (int u = 0; u < n; u++) {
+                out.putVarint(snapshot.outDegree(u));
+                for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                    out.putVarint(snapshot.outTarget(e));
+                    out.putVarint(snapshot.outWeight(e));
+                }
+            }
+            for (int u = 0; u < n; u++) {
+                out.putVarint(wordCounts.getOrDefault(snapshot.wordOf(u), 0));
+            }
+            String lastWord = builder.getLastWord();
+            out.putVarint(lastWord == null ? 0 : snapshot.idOf(lastWord) + 1);
+            payloadBytes = out.finish();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(FORMAT_VERSION)
+                  .putLong(sourceSize).putLong(sourceModified).putLong(sourceHash)
+                  .putInt(n).putInt(snapshot.edgeCount()).putLong(builder.getTotalWords())
+                  .putLong(payloadBytes).putLong(crc.getValue());
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            throw e;
+        }
+        if (HEADER_BYTES + payloadBytes > Integer.MAX_VALUE) {
+            temporary.delete(); // Could not be mapped in one piece
+            throw new IOException("Graph too large for a snapshot (" + payloadBytes + " bytes)");
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads the snapshot saved for a text file.
+     * @return The graph and word counts, or null if there is no snapshot or it belongs to another
+     *         version of the text file.
+     * @throws IOException If the snapshot is truncated or corrupt.
+     */
+    static GraphBuilder load(File file, File input) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION
+                    || header.getLong() != input.length() || header.getLong() != input.lastModified()
+                    || header.getLong() != sampleHash(input)) {
+                return null; // Written for something else; will be rebuilt
+            }
+            int n = header.getInt();
+            int edgeCount = header.getInt();
+            long totalWords = header.getLong();
+            long payloadBytes = header.getLong();
+            long checksum = header.getLong();
+            if (n < 0 || edgeCount < 0 || payloadBytes != size - HEADER_BYTES) {
+                throw new IOException("Truncated graph snapshot: " + file);
+            }
+            // Mapped only once known to be current: a stale file is replaced, which Windows refuses while it is mapped
+            ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, payloadBytes);
+            CRC32 crc = new CRC32();
+            crc.update(data.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IOException("Corrupt graph snapshot (checksum mismatch): " + file);
+            }
+
+            try {
+                String[] words = new String[n];
+                byte[] bytes = new byte[64];
+                for (int u = 0; u < n; u++) {
+                    int length = getVarint(data);
+                    if (length > bytes.length) {
+                        bytes = new byte[Math.max(length, bytes.length * 2)];
+                    }
+                    data.get(bytes, 0, length);
+                    words[u] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                }
+                int[] offsets = new int[n + 1];
+                int[] targets = new int[edgeCount];
+                int[] weights = new int[edgeCount];
+                int e = 0;
+                for (int u = 0; u < n; u++) {
+                    offsets[u] = e;
+                    int degree = getVarint(data);
+                    for (int i = 0; i < degree; i++) {
+                        int target = getVarint(data);
+                        if (target >= n) {
+                            throw new IOException("Corrupt graph snapshot (edge to node " + target + "): " + file);
+                        }
+                        targets[e] = target;
+                        weights[e] = getVarint(data);
+                        e++;
+                    }
+                }
+                offsets[n] = e;
+                if (e != edgeCount) {
+                    throw new IOException("Corrupt graph snapshot (edge count): " + file);
+                }
+                Map<String, Integer> wordCounts = new HashMap<>(n * 4 / 3 + 1);
+                for (int u = 0; u < n; u++) {
+                    int count = getVarint(data);
+                    if (count > 0) {
+                        wordCounts.put(words[u], count);
+                    }
+                }
+                int lastWord = getVarint(data) - 1;
+                if (lastWord >= n) {
+                    throw new IOException("Corrupt graph snapshot (last word " + lastWord + "): " + file);
+                }
+                // Versions only need to differ between snapshots of one graph; this one starts a new graph
+                GraphSnapshot snapshot = new GraphSnapshot((long) n + edgeCount, words, offsets, targets, weights);
+                return new GraphBuilder(DirectedGraph.fromSnapshot(snapshot), wordCounts, totalWords,
+                        lastWord < 0 ? null : words[lastWord]);
+            } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+                throw new IOException("Truncated graph snapshot: " + file, e);
+            }
+        }
+    }
+
+    // CRC32 of the first and last SAMPLE_BYTES of the file: catches most rewrites that keep size and time
+    private static long sampleHash(File input) throws IOException {
+        CRC32 crc = new CRC32();
+        try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, SAMPLE_BYTES));
+            readFully(channel, buffer, 0);
+            crc.update(buffer.array(), 0, buffer.position());
+            if (size > SAMPLE_BYTES) {
+                buffer.clear();
+                readFully(channel, buffer, Math.max(SAMPLE_BYTES, size - SAMPLE_BYTES));
+                crc.update(buffer.array(), 0, buffer.position());
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) break;
+        }
+    }
+
+    // Unsigned LEB128: 7 bits per byte, low bits first, high bit set on all but the last byte
+    private static int getVarint(ByteBuffer data) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = data.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (value < 0) break;
+                return value;
+            }
+        }
+        throw new IOException("Corrupt graph snapshot (bad number)");
+    }
+
+    // Buffered writer of varints and bytes at a file position; checksums everything it writes
+    private static final class VarintWriter {
+        private final FileChannel channel;
+        private final CRC32 crc;
+        private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        private long position;
+        private long written = 0;
+
+        VarintWriter(FileChannel channel, long position, CRC32 crc) {
+            this.channel = channel;
+            this.position = position;
+            this.crc = crc;
+        }
+
+        void putVarint(int value) throws IOException {
+            if (buffer.remaining() < 5) {
+                flush();
+            }
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        void put(byte[] bytes) throws IOException {
+            for (int i = 0; i < bytes.length; ) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int chunk = Math.min(bytes.length - i, buffer.remaining());
+                buffer.put(bytes, i, chunk);
+                i += chunk;
+            }
+        }
+
+        /**
+         * @return The number of bytes written.
+         */
+        long finish() throws IOException {
+            flush();
+            return written;
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update(buffer.array(), 0, buffer.limit());
+            written += buffer.limit();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+    }
+}
+
+// --- PageRank Engine ---
+/**
+ * PageRank over a GraphSnapshot. Scores live in double[] arrays indexed by node ID and each
+ * iteration pulls rank along the snapshot's in-edges (links are unweighted; the rank of dangling
+ * nodes is spread uniformly). Large graphs split every iteration into node ranges that are
+ * evaluated on a fork-join pool.
+ */
+final class PageRankEngine {
+    // Below this many edges an iteration is cheaper than handing it to a thread pool
+    private static final int MIN_PARALLEL_EDGES = 200_000;
+
+    private final double dampingFactor;
+    private final double tolerance;
+    private final int maxIterations;
+    private final int parallelism;
+
+    /**
+     * @param dampingFactor Probability of following a link (d).
+     * @param tolerance Convergence threshold on the L1 change between two iterations.
+     * @param maxIterations Iteration cap.
+     * @param parallelism Number of worker threads; 1 runs on the calling thread.
+     */
+    PageRankEngine(double dampingFactor, double tolerance, int maxIterations, int parallelism) {
+        if (dampingFactor < 0 || dampingFactor > 1) {
+            throw new IllegalArgumentException("Damping factor must be in [0, 1]: " + dampingFactor);
+        }
+        this.dampingFactor = dampingFactor;
+        this.tolerance = tolerance;
+        this.maxIterations = maxIterations;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * @return An engine with d=0.85, tolerance 1e-6, at most 100 iterations, one thread per core.
+     */
+    static PageRankEngine withDefaults() {
+        return new PageRankEngine(0.85, 1e-6, 100, Runtime.getRuntime().availableProcessors());
+    }
+
+    public double getDampingFactor() { return dampingFactor; }
+    public double getTolerance() { return tolerance; }
+    public int getMaxIterations() { return maxIterations; }
+
+    /**
+     * Outcome of a PageRank run.
+     */
+    static final class Result {
+        final GraphSnapshot snapshot;
+        final double[] ranks;   // Indexed by node ID
+        final int iterations;   // For incremental updates: full iterations' worth of edge work
+        final double delta;     // L1 change of the last iteration (L1 residual for incremental updates)
+        final boolean converged;
+        final long pushes;      // Residual pushes of an incremental update, 0 for a full run
+
+        Result(GraphSnapshot snapshot, double[] ranks, int iterations, double delta, boolean converged, long pushes) {
+            this.snapshot = snapshot;
+            this.ranks = ranks;
+            this.iterations = iterations;
+            this.delta = delta;
+            this.converged = converged;
+            this.pushes = pushes;
+        }
+
+        /**
+         * @return The rank of the word, or null if it is not in the graph.
+         */
+        Double rankOf(String word) {
+            int id = snapshot.idOf(word);
+            return id < 0 ? null : ranks[id];
+        }
+
+        boolean isIncremental() {
+            return pushes > 0;
+        }
+    }
+
+    /**
+     * @return 1/N for every node.
+     */
+    static double[] uniformRanks(GraphSnapshot snapshot) {
+        double[] ranks = new double[snapshot.nodeCount()];
+        Arrays.fill(ranks, 1.0 / ranks.length);
+        return ranks;
+    }
+
+    /**
+     * Initial ranks proportional to term frequency (count / total count), normalized to sum 1.
+     * Falls back to uniform ranks when there are no usable counts.
+     * @param snapshot The graph.
+     * @param wordCounts Occurrences of each word in the source text.
+     */
+    static double[] termFrequencyRanks(GraphSnapshot snapshot, Map<String, Integer> wordCounts) {
+        int numNodes = snapshot.nodeCount();
+        if (wordCounts.isEmpty()) {
+            System.err.println("Warning: Graph has nodes but word counts are empty. Falling back to uniform PageRank initialization.");
+            return uniformRanks(snapshot);
+        }
+        long totalWordOccurrences = 0; // Sum of frequencies of all words in the doc
+        for (int count : wordCounts.values()) {
+            totalWordOccurrences += count;
+        }
+        if (totalWordOccurrences == 0) {
+            System.err.println("Warning: Total word occurrences is zero, but graph has nodes. Falling back to uniform PageRank initialization.");
+            return uniformRanks(snapshot);
+        }
+
+        double[] ranks = new double[numNodes];
+        double sumCheck = 0.0;
+        for (int id = 0; id < numNodes; id++) {
+            int count = wordCounts.getOrDefault(snapshot.wordOf(id), 0);
+            // Initial PR = TF / TotalTF; nodes that never appeared as words get 0
+            ranks[id] = (count > 0) ? (double) count / totalWordOccurrences : 0.0;
+            sumCheck += ranks[id];
+        }
+        if (Math.abs(sumCheck - 1.0) > 1e-5) {
+            System.err.println("Warning: Initial PageRank sum deviates significantly from 1. Normalizing.");
+            if (sumCheck > 0) {
+                for (int id = 0; id < numNodes; id++) {
+                    ranks[id] /= sumCheck;
+                }
+            } else {
+                System.err.println("Error: Cannot normalize zero sum. Falling back to uniform distribution.");
+                return uniformRanks(snapshot);
+            }
+        }
+        return ranks;
+    }
+
+    /**
+     * Iterates until the L1 change drops to the tolerance or the iteration cap is reached.
+     * @param snapshot The graph.
+     * @param initialRanks Starting ranks indexed by node ID (not modified).
+     * @return The final ranks and convergence information.
+     */
+    Result compute(GraphSnapshot snapshot, double[] initialRanks) {
+        int n = snapshot.nodeCount();
+        double[] current = initialRanks.clone();
+        double[] next = new double[n];
+        double[] share = new double[n]; // rank / out-degree of each source for the current iteration
+
+        int danglingCount = 0;
+        for (int u = 0; u < n; u++) {
+            if (snapshot.outDegree(u) == 0) danglingCount++;
+        }
+        int[] dangling = new int[danglingCount];
+        for (int u = 0, i = 0; u < n; u++) {
+            if (snapshot.outDegree(u) == 0) dangling[i++] = u;
+        }
+
+        ForkJoinPool pool = null;
+        int chunks = 1;
+        if (parallelism > 1 && snapshot.edgeCount() >= MIN_PARALLEL_EDGES) {
+            pool = new ForkJoinPool(parallelism);
+            chunks = Math.min(n, parallelism * 4);
+        }
+        double[] chunkChange = new double[chunks];
+
+        int iteration = 0;
+        double delta = 1.0;
+        try {
+            while (iteration < maxIterations && delta > tolerance) {
+                double danglingSum = 0.0;
+                for (int u : dangling) {
+                    danglingSum += current[u];
+                }
+                double base = (1.0 - dampingFactor) / n + dampingFactor * (danglingSum / n);
+                for (int u = 0; u < n; u++) {
+                    int degree = snapshot.outDegree(u);
+                    share[u] = degree == 0 ? 0.0 : current[u] / degree;
+                }
+
+                if (pool == null) {
+                    chunkChange[0] = pullRange(snapshot, share, current, next, base, 0, n);
+                } else {
+                    final double[] from = current;
+                    final double[] to = next;
+                    final int chunkCount = chunks;
+                    List<ForkJoinTask<?>> tasks = new ArrayList<>(chunkCount);
+                    for (int c = 0; c < chunkCount; c++) {
+                        final int chunk = c;
+                        tasks.add(pool.submit(() -> {
+                            int start = (int) ((long) n * chunk / chunkCount);
+                            int end = (int) ((long) n * (chunk + 1) / chunkCount);
+                            chunkChange[chunk] = pullRange(snapshot, share, from, to, base, start, end);
+                        }));
+                    }
+                    for (ForkJoinTask<?> task : tasks) {
+                        task.join();
+                    }
+                }
+
+                double totalChange = 0.0;
+                for (double change : chunkChange) {
+                    totalChange += change;
+                }
+                double[] swap = current;
+                current = next;
+                next = swap;
+                delta = totalChange;
+                iteration++;
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        return new Result(snapshot, current, iteration, delta, delta <= tolerance, 0);
+    }
+
+    /**
+     * Updates a previous result after edges (and possibly nodes) were added to its graph, instead of
+     * starting over. The old ranks are the starting point, and only the residual caused by the change is
+     * propagated, push-style (Gauss-Southwell): the residual of a node is added to its rank and
+     * d * residual / out-degree is pushed to each out-neighbor, until every node's residual is below
+     * tolerance / (2N). Only targets of sources whose out-degree changed (and new nodes) start with a
+     * residual; the part of the residual that is the same for every node (change in (1-d)/N and in the
+     * dangling mass) is tracked as a single number and absorbed by rescaling the ranks, which needs no
+     * edge traversal.
+     * Pushing stops after about one full iteration's worth of work: on well-connected text graphs the
+     * residual quickly spreads over most nodes, and from there full iterations (warm-started from the
+     * pushed ranks) are cheaper. The same warm start is used directly if the previous result had not
+     * converged or most nodes changed.
+     * @param previous A converged result for an earlier version of the same (append-only) graph.
+     * @param snapshot The current snapshot of that graph.
+     * @return The updated ranks; iterations counts the work done in units of one full iteration.
+     */
+    Result update(Result previous, GraphSnapshot snapshot) {
+        GraphSnapshot old = previous.snapshot;
+        int n = snapshot.nodeCount();
+        double d = dampingFactor;
+
+        // Warm start: carry the old ranks over by word; new nodes start at 0
+        double[] ranks = new double[n];
+        boolean[] changed = new boolean[n];
+        int changedCount = 0;
+        for (int v = 0; v < n; v++) {
+            int oldId = old.idOf(snapshot.wordOf(v));
+            if (oldId >= 0) {
+                ranks[v] = previous.ranks[oldId];
+                changed[v] = old.outDegree(oldId) != snapshot.outDegree(v);
+            } else {
+                changed[v] = true;
+            }
+            if (changed[v]) changedCount++;
+        }
+        if (n == 0 || !previous.converged || changedCount > n / 2) {
+            return finishWithIterations(snapshot, ranks, 0, 0);
+        }
+
+        double oldUniform = uniformTerm(old, previous.ranks);
+        double uniform = uniformTerm(snapshot, ranks) - oldUniform; // Residual shared by every node
+
+        // Explicit residuals, exact for every node whose incoming shares changed
+        double[] residual = new double[n];
+        boolean[] affected = new boolean[n];
+        for (int u = 0; u < n; u++) {
+            if (!changed[u]) continue;
+            affected[u] = true; // New nodes; harmless (recomputed exactly) for old ones
+            for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                affected[snapshot.outTarget(e)] = true;
+            }
+        }
+
+        double epsilon = tolerance / (2.0 * n);
+        int[] queue = new int[n];
+        boolean[] queued = new boolean[n];
+        int head = 0;
+        int size = 0;
+        double mass = 0.0; // L1 norm of the explicit residuals
+        for (int v = 0; v < n; v++) {
+            if (!affected[v]) continue;
+            double incoming = 0.0;
+            for (int i = snapshot.inStart(v); i < snapshot.inEnd(v); i++) {
+                int q = snapshot.inSource(i);
+                incoming += ranks[q] / snapshot.outDegree(q);
+            }
+            residual[v] = oldUniform + d * incoming - ranks[v];
+            mass += Math.abs(residual[v]);
+            if (Math.abs(residual[v]) > epsilon) {
+                queue[(head + size++) % n] = v;
+                queued[v] = true;
+            }
+        }
+
+        long sweepCost = (long) n + snapshot.edgeCount();
+        long budget = sweepCost; // Pushes are worth it while they stay local; about one sweep of work
+        long work = 0;
+        long pushes = 0;
+        while (true) {
+            // Local pushes of the explicit residuals
+            while (size > 0 && work <= budget && mass > tolerance / 4) {
+                int u = queue[head];
+                head = (head + 1) % n;
+                size--;
+                queued[u] = false;
+                double push = residual[u];
+                if (Math.abs(push) <= epsilon) continue;
+                ranks[u] += push;
+                residual[u] = 0.0;
+                mass -= Math.abs(push);
+                pushes++;
+                int degree = snapshot.outDegree(u);
+                work += 1 + degree;
+                if (degree == 0) {
+                    uniform += d * push / n; // Dangling rank is spread over every node
+                    continue;
+                }
+                double share = d * push / degree;
+                for (int e = snapshot.outStart(u); e < snapshot.outEnd(u); e++) {
+                    int w = snapshot.outTarget(e);
+                    mass -= Math.abs(residual[w]);
+                    residual[w] += share;
+                    mass += Math.abs(residual[w]);
+                    if (!queued[w] && Math.abs(residual[w]) > epsilon) {
+                        queue[(head + size++) % n] = w;
+                        queued[w] = true;
+                    }
+                }
+            }
+            if (Math.abs(uniform) * n <= tolerance / 4 || work > budget) {
+                break;
+            }
+
+            // Absorb the shared residual g. The fixed point p satisfies (I - dA) p = (1-d)/N * 1,
+            // so a uniform residual g is removed by scaling the ranks with c = g * N / (1-d):
+            // the residual becomes (1+c) * explicit + c * g, i.e. the shared part shrinks to O(g^2).
+            // This touches every node once (O(N)) but no edges.
+            double c = uniform * n / (1.0 - d);
+            work += n;
+            for (int v = 0; v < n; v++) {
+                ranks[v] *= 1.0 + c;
+                residual[v] *= 1.0 + c;
+                if (!queued[v] && Math.abs(residual[v]) > epsilon) {
+                    queue[(head + size++) % n] = v;
+                    queued[v] = true;
+                }
+            }
+            uniform *= c;
+            mass *= Math.abs(1.0 + c);
+        }
+
+        double remaining = Math.abs(uniform) * n;
+        for (double r : residual) {
+            remaining += Math.abs(r);
+        }
+        int equivalentIterations = (int) Math.max(1, (work + sweepCost - 1) / sweepCost);
+        if (remaining > tolerance) {
+            // The residual has spread too far for local pushes: finish with full iterations from here
+            return finishWithIterations(snapshot, ranks, equivalentIterations, pushes);
+        }
+        return new Result(snapshot, ranks, equivalentIterations, remaining, remaining <= tolerance, Math.max(1, pushes));
+    }
+
+    // Warm-started full iterations. The fixed point sums to 1 and an iteration only shrinks a deviation
+    // of the sum by d, so the start vector is renormalized first.
+    private Result finishWithIterations(GraphSnapshot snapshot, double[] ranks, int iterationsDone, long pushes) {
+        double sum = 0.0;
+        for (double r : ranks) {
+            sum += r;
+        }
+        if (sum > 0.0) {
+            for (int v = 0; v < ranks.length; v++) {
+                ranks[v] /= sum;
+            }
+        }
+        Result rest = compute(snapshot, ranks);
+        return new Result(snapshot, rest.ranks, iterationsDone + rest.iterations, rest.delta, rest.converged, pushes);
+    }
+
+    // (1-d)/N plus the dangling rank spread over every node
+    private double uniformTerm(GraphSnapshot snapshot, double[] ranks) {
+        int n = snapshot.nodeCount();
+        double danglingSum = 0.0;
+        for (int u = 0; u < n; u++) {
+            if (snapshot.outDegree(u) == 0) danglingSum += ranks[u];
+        }
+        return (1.0 - dampingFactor) / n + dampingFactor * (danglingSum / n);
+    }
+
+    // Computes next[v] for v in [start, end) and returns the L1 change over that range
+    private double pullRange(GraphSnapshot snapshot, double[] share, double[] current, double[] next,
+                             double base, int start, int end) {
+        double change = 0.0;
+        for (int v = start; v < end; v++) {
+            double incoming = 0.0;
+            for (int i = snapshot.inStart(v); i < snapshot.inEnd(v); i++) {
+                incoming += share[snapshot.inSource(i)];
+            }
+            next[v] = base + dampingFactor * incoming;
+            change += Math.abs(next[v] - current[v]);
+        }
+        return change;
+    }
+}
+
+// --- PageRank Cache ---
+/**
+ * Lazily computed PageRank for the currently loaded graph.
+ * The result is tied to the graph's snapshot (and therefore to its version): it is computed on first
+ * access, served from memory afterwards and recomputed only once the graph has changed. Since the graph
+ * only grows, a recomputation after new edges is an incremental update of the last result.
+ * Concurrent callers for the same version wait for one shared computation instead of starting their own.
+ */
+final class PageRankCache implements DirectedGraph.ChangeListener {
+    private final PageRankEngine engine;
+    private DirectedGraph graph = null;
+    private Map<String, Integer> wordCounts = null;
+    private GraphSnapshot cachedSnapshot = null;         // Snapshot the cached computation belongs to
+    private FutureTask<PageRankEngine.Result> cached = null;
+    private PageRankEngine.Result lastResult = null;     // Latest completed result for this graph
+
+    PageRankCache(PageRankEngine engine) {
+        this.engine = engine;
+    }
+
+    PageRankEngine getEngine() { return engine; }
+
+    /**
+     * Switches the cache to a newly loaded graph and drops the old result.
+     * @param graph The graph (may be null).
+     * @param wordCounts Word counts of the graph's text, used for the TF-based start vector.
      */
-    public void addNode(String node) {
-        nodes.add(node);
-        adjacencyList.putIfAbsent(node, new HashMap<>());
+    synchronized void reset(DirectedGraph graph, Map<String, Integer> wordCounts) {
+        if (this.graph != null) {
+            this.graph.removeChangeListener(this);
+        }
+        if (graph != null) {
+            graph.addChangeListener(this);
+        }
+        this.graph = graph;
+        this.wordCounts = wordCounts;
+        this.cachedSnapshot = null;
+        this.cached = null;
+        this.lastResult = null;
     }
 
     /**
-     * Adds or increments the weight of a directed edge.
-     * @param source The source node (word).
-     * @param target The target node (word).
+     * Keeps the cached result across an append that only raised edge weights: links are unweighted
+     * here, so the ranks are unchanged. Appends that add nodes or edges are left to get(), which
+     * updates the last result incrementally.
      */
-    public void addEdge(String source, String target) {
-        // Ensure nodes exist
-        addNode(source);
-        addNode(target);
+    @Override
+    public synchronized void graphChanged(DirectedGraph changed, DirectedGraph.Change change) {
+        if (changed != graph || change.linksChanged() || cached == null
+                || cachedSnapshot.getVersion() != change.fromVersion) {
+            return;
+        }
+        synchronized (changed) {
+            if (changed.getVersion() == change.toVersion) { // Not if another append followed
+                cachedSnapshot = changed.snapshot();
+            }
+        }
+    }
 
-        // Get the neighbors of the source node
-        Map<String, Integer> neighbors = adjacencyList.get(source);
+    /**
+     * Returns PageRank for the graph's current version, computing it if necessary.
+     * @return The result, or null if no graph is loaded or the calling thread was interrupted while waiting.
+     */
+    PageRankEngine.Result get() {
+        FutureTask<PageRankEngine.Result> task;
+        boolean owner = false;
+        synchronized (this) {
+            if (graph == null) {
+                return null;
+            }
+            GraphSnapshot snapshot = graph.snapshot();
+            if (cached == null || cachedSnapshot != snapshot) {
+                Map<String, Integer> counts = wordCounts;
+                PageRankEngine.Result previous = lastResult;
+                cachedSnapshot = snapshot;
+                if (previous != null && previous.converged) {
+                    cached = new FutureTask<>(() -> engine.update(previous, snapshot));
+                } else {
+                    DirectedGraph countsLock = graph; // Appends update the word counts under the graph's lock
+                    cached = new FutureTask<>(() -> {
+                        double[] start;
+                        synchronized (countsLock) {
+                            start = PageRankEngine.termFrequencyRanks(snapshot, counts);
+                        }
+                        return engine.compute(snapshot, start);
+                    });
+                }
+                owner = true;
+            }
+            task = cached;
+        }
+        if (owner) {
+            task.run(); // Computed on the first caller's thread; later callers block in get()
+        }
+        try {
+            PageRankEngine.Result result = task.get();
+            synchronized (this) {
+                if (cached == task) {
+                    lastResult = result; // Not after a reset: the result belongs to the current graph
+                }
+            }
+            return result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                if (cached == task) {
+                    cached = null; // Let the next caller retry
+                }
+            }
+            Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
+    }
 
-        // Increment weight or add edge with weight 1
-        neighbors.put(target, neighbors.getOrDefault(target, 0) + 1);
+    /**
+     * @param word A lowercase word.
+     * @return The word's PageRank, or null if no graph is loaded or the word is not in it.
+     */
+    Double rankOf(String word) {
+        PageRankEngine.Result result = get();
+        return result == null ? null : result.rankOf(word);
     }
+}
+
+// --- Command Line Options ---
+/**
+ * Options of the form --name=value shared by TextGraphApp, TextGraphCli and BatchBridgeQuery.
+ * Only the names an entry point understands are options; every other argument is positional.
+ * Enum values are matched case-insensitively, with '-' standing for '_'; a value that names no
+ * constant is reported on stderr and the default is kept.
+ */
+final class CommandLineOptions {
+    private final Map<String, String> values = new HashMap<>();
+    private final List<String> positional = new ArrayList<>();
 
     /**
-     * Checks if a node exists in the graph.
-     * @param node The word to check.
-     * @return true if the node exists, false otherwise.
+     * @param args The arguments given to main.
+     * @param names The option names understood, without the leading "--".
      */
-    public boolean containsNode(String node) {
-        return nodes.contains(node);
+    CommandLineOptions(String[] args, String... names) {
+        for (String arg : args) {
+            String option = null;
+            for (String name : names) {
+                if (arg.startsWith("--" + name + "=")) {
+                    option = name;
+                }
+            }
+            if (option != null) {
+                values.put(option, arg.substring(option.length() + 3));
+            } else {
+                positional.add(arg);
+            }
+        }
     }
 
     /**
-     * Gets the weight of an edge.
-     * @param source The source node.
-     * @param target The target node.
-     * @return The weight of the edge, or 0 if the edge doesn't exist.
+     * @return The arguments that are not options, in order.
      */
-    public int getWeight(String source, String target) {
-        return adjacencyList.getOrDefault(source, Collections.emptyMap()).getOrDefault(target, 0);
+    List<String> getPositional() {
+        return positional;
     }
 
     /**
-     * Gets the outgoing neighbors of a node.
-     * @param node The source node.
-     * @return A map of target nodes to edge weights, or an empty map if the node has no neighbors or doesn't exist.
+     * @return The value given for the option, or null if it was not given.
      */
-    public Map<String, Integer> getNeighbors(String node) {
-        return adjacencyList.getOrDefault(node, Collections.emptyMap());
+    String getValue(String name) {
+        return values.get(name);
     }
 
-     /**
-     * Gets all nodes that have an edge pointing *to* the given node.
-     * @param targetNode The node whose incoming neighbors are sought.
-     * @return A set of source nodes pointing to targetNode.
+    /**
+     * @return The constant named by the option's value, or defaultValue if the option was not given
+     *         or its value names no constant.
      */
-    public Set<String> getInNeighbors(String targetNode) {
-        Set<String> inNeighbors = new HashSet<>();
-        if (!nodes.contains(targetNode)) {
-            return inNeighbors; // Target node doesn't exist
+    <E extends Enum<E>> E getEnum(String name, E defaultValue) {
+        String value = values.get(name);
+        if (value == null) {
+            return defaultValue;
         }
-        for (Map.Entry<String, Map<String, Integer>> entry : adjacencyList.entrySet()) {
-            String sourceNode = entry.getKey();
-            Map<String, Integer> neighbors = entry.getValue();
-            if (neighbors.containsKey(targetNode)) {
-                inNeighbors.add(sourceNode);
+        try {
+            return Enum.valueOf(defaultValue.getDeclaringClass(), value.toUpperCase().replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Unknown " + name.replace('-', ' ') + " in --" + name + "=" + value + ", using "
+                    + defaultValue.name().toLowerCase().replace('_', '-') + ".");
+            return defaultValue;
+        }
+    }
+}
+
+// --- Headless Command Line ---
+/**
+ * Command-line front end for servers without a display: builds the graph once and then answers
+ * queries read one per line from a file or stdin. Uses the same engines as the GUI but never
+ * touches TextGraphApp, so no AWT/Swing class is loaded.
+ * <p>
+ * Usage: java TextGraphCli [--load-mode=streaming|parallel|mmap] [--path-search=bidirectional|early-exit]
+ * [--seed=N] [--sampling=uniform|weighted] corpus.txt [queries.txt|-] [out.tsv]
+ * <p>
+ * Queries (words are matched case-insensitively):
+ * <pre>
+ * load FILE             replace the graph with the one built from FILE
+ * append FILE           add the text of FILE to the graph, after the text loaded so far
+ * bridge WORD1 WORD2    bridge words from WORD1 to WORD2
+ * generate TEXT...      TEXT with random bridge words inserted (picked by edge weight with --sampling=weighted)
+ * shortest WORD1 [WORD2] shortest path, or shortest paths to every reachable word
+ * pagerank [WORD]       PageRank of WORD, or of every word (highest first)
+ * randomwalk            one random walk from a random start (following edges by weight with --sampling=weighted)
+ * walks COUNT [SEED [FILE]] COUNT independent random walks run in parallel; statistics, and every
+ *                       walk written to FILE (then NAME.1.EXT, NAME.2.EXT, ... after each 64 MB)
+ * </pre>
+ * Output is tab-separated. Every line starts with the query's number (1 for the first query) and
+ * its command; a query's result lines are followed by "N ok MICROS" with its latency in
+ * microseconds, or by "N error MESSAGE". Result lines:
+ * <pre>
+ * N load NODES EDGES
+ * N append WORDS NEW_NODES NEW_EDGES NODES EDGES
+ * N bridge WORD1 WORD2 BRIDGES           (space-separated; "?" if a word is not in the graph)
+ * N generate TEXT
+ * N shortest WORD1 WORD2 WEIGHT PATH     (PATH space-separated; WEIGHT -1 if there is no path, "?" if a word is not in the graph)
+ * N pagerank WORD RANK                   ("?" if the word is not in the graph)
+ * N randomwalk STOP WALK                 (STOP is repeated-edge or dead-end; WALK space-separated)
+ * N walks file FILE FILES BYTES         (with FILE: files and bytes written)
+ * N walks summary WALKS STEPS SECONDS WALKS_PER_SECOND
+ * N walks stop STOP COUNT                (one line per stop reason)
+ * N walks length MIN P50 P90 P99 MAX MEAN (visited nodes per walk)
+ * N walks histogram LOW HIGH COUNT       (walks with LOW &lt;= length &lt;= HIGH, power-of-two buckets)
+ * </pre>
+ * Startup time and per-command latency statistics are written to stderr.
+ */
+final class TextGraphCli {
+    private final GraphBuilder.LoadMode loadMode;
+    private final ShortestPathEngine.PointSearch pointSearch;
+    private final RandomWalkEngine.Sampling sampling;
+    private final Random random;
+    private final PageRankCache pageRankCache = new PageRankCache(PageRankEngine.withDefaults());
+    private final Map<String, LatencyStats> latencies = new LinkedHashMap<>(); // Command -> its latencies
+    private static final long WALK_FILE_BYTES = 64L << 20; // walks ... FILE moves on to a new file after this size
+    private GraphBuilder builder;
+    private DirectedGraph graph;
+    private GraphSnapshot snapshot;
+    private ShortestPathEngine shortestPathEngine;
+    private RandomWalkEngine randomWalkEngine;
+    private AllPairsShortestPaths allPairs;
+
+    TextGraphCli(GraphBuilder.LoadMode loadMode, ShortestPathEngine.PointSearch pointSearch,
+                 RandomWalkEngine.Sampling sampling, Random random) {
+        this.loadMode = loadMode;
+        this.pointSearch = pointSearch;
+        this.sampling = sampling;
+        this.random = random;
+    }
+
+    // Latencies of one command, in nanoseconds
+    private static final class LatencyStats {
+        private long[] values = new long[64];
+        private int count = 0;
+
+        void add(long nanos) {
+            if (count == values.length) {
+                values = Arrays.copyOf(values, count * 2);
             }
+            values[count++] = nanos;
+        }
+
+        String summary() {
+            long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long value : sorted) total += value;
+            return String.format("%d queries, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us", count,
+                    total / 1e3 / count, sorted[(count - 1) / 2] / 1e3, sorted[(int) ((count - 1) * 0.99)] / 1e3,
+                    sorted[count - 1] / 1e3);
         }
-        return inNeighbors;
     }
 
     /**
-     * Gets the set of all nodes in the graph.
-     * @return An unmodifiable set of nodes.
+     * Builds the graph of a text file and makes it the one queries run against.
+     * Precomputed shortest path tables saved next to the file are used if they match.
      */
-    public Set<String> getAllNodes() {
-        return Collections.unmodifiableSet(nodes);
+    void load(String filePath) throws IOException {
+        builder = GraphSnapshotFile.loadOrBuild(new File(filePath), () -> GraphBuilder.fromFile(filePath, loadMode));
+        graph = builder.getGraph();
+        graph.addChangeListener(this::graphChanged);
+        snapshot = graph.snapshot();
+        shortestPathEngine = new ShortestPathEngine(snapshot);
+        randomWalkEngine = new RandomWalkEngine(snapshot, sampling);
+        pageRankCache.reset(graph, builder.getWordCounts());
+        File input = new File(filePath);
+        try {
+            allPairs = AllPairsShortestPaths.load(AllPairsShortestPaths.fileFor(input), input, snapshot);
+        } catch (IOException e) {
+            System.err.println("Ignoring precomputed shortest paths: " + e.getMessage());
+            allPairs = null;
+        }
+    }
+
+    // After an append: the engines and tables belong to the old snapshot (PageRank follows by itself)
+    private void graphChanged(DirectedGraph changed, DirectedGraph.Change change) {
+        snapshot = changed.snapshot();
+        shortestPathEngine = new ShortestPathEngine(snapshot);
+        randomWalkEngine = new RandomWalkEngine(snapshot, sampling);
+        allPairs = null; // Precomputed for the loaded file; paths depend on every weight
     }
 
     /**
-     * Generates a string representation of the graph in Graphviz DOT format.
-     * @param highlightedPath Nodes in this path will be highlighted. Can be null.
-     * @return The graph structure in DOT format as a string.
+     * Appends a text file to the graph; only that file is read and tokenized.
      */
-    public String toDotFormat(List<String> highlightedPath) {
-        StringBuilder dot = new StringBuilder("digraph G {\n");
-        dot.append("  node [shape=box, style=rounded];\n"); // Style nodes
+    DirectedGraph.Change append(String filePath) throws IOException {
+        try (Reader in = new InputStreamReader(new FileInputStream(filePath), StandardCharsets.UTF_8)) {
+            return builder.append(in);
+        }
+    }
+
+    GraphSnapshot getSnapshot() { return snapshot; }
+
+    /**
+     * Answers every query read from the reader.
+     * @return The number of queries.
+     */
+    long run(BufferedReader queries, Writer out) throws IOException {
+        long number = 0;
+        String line;
+        while ((line = queries.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) continue;
+            number++;
+            String[] parts = line.split("\\s+", 2);
+            String command = parts[0].toLowerCase();
+            String arguments = parts.length > 1 ? parts[1] : "";
+            String prefix = number + "\t" + command + "\t";
+            long start = System.nanoTime();
+            try {
+                answer(command, arguments, prefix, out);
+                long nanos = System.nanoTime() - start;
+                latencies.computeIfAbsent(command, c -> new LatencyStats()).add(nanos);
+                out.write(number + "\tok\t" + nanos / 1000 + "\n");
+            } catch (IllegalArgumentException | IOException e) {
+                out.write(number + "\terror\t" + String.valueOf(e.getMessage()).replaceAll("\\s+", " ") + "\n");
+            }
+            if (!queries.ready()) {
+                out.flush(); // Interactive use: answer before blocking on the next query
+            }
+        }
+        out.flush();
+        return number;
+    }
+
+    // Writes the result lines of one query
+    private void answer(String command, String arguments, String prefix, Writer out) throws IOException {
+        String[] words = arguments.isEmpty() ? new String[0] : arguments.toLowerCase().split("\\s+");
+        switch (command) {
+            case "load":
+                if (arguments.isEmpty()) throw new IllegalArgumentException("Usage: load FILE");
+                load(arguments);
+                out.write(prefix + snapshot.nodeCount() + "\t" + snapshot.edgeCount() + "\n");
+                break;
+            case "append":
+                if (arguments.isEmpty()) throw new IllegalArgumentException("Usage: append FILE");
+                DirectedGraph.Change change = append(arguments);
+                out.write(prefix + change.words + "\t" + change.addedNodes + "\t" + change.addedEdges + "\t"
+                        + snapshot.nodeCount() + "\t" + snapshot.edgeCount() + "\n");
+                break;
+            case "bridge":
+                if (words.length != 2) throw new IllegalArgumentException("Usage: bridge WORD1 WORD2");
+                out.write(prefix + words[0] + "\t" + words[1] + "\t" + bridgeWords(words[0], words[1]) + "\n");
+                break;
+            case "generate":
+                out.write(prefix + generate(arguments) + "\n");
+                break;
+            case "shortest":
+                if (words.length < 1 || words.length > 2) throw new IllegalArgumentException("Usage: shortest WORD1 [WORD2]");
+                shortest(words[0], words.length == 2 ? words[1] : null, prefix, out);
+                break;
+            case "pagerank":
+                if (words.length > 1) throw new IllegalArgumentException("Usage: pagerank [WORD]");
+                pageRank(words.length == 1 ? words[0] : null, prefix, out);
+                break;
+            case "randomwalk":
+                if (words.length > 0) throw new IllegalArgumentException("Usage: randomwalk");
+                randomWalk(prefix, out);
+                break;
+            case "walks":
+                walks(arguments.isEmpty() ? new String[0] : arguments.split("\\s+"), prefix, out); // FILE keeps its case
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown command: " + command);
+        }
+    }
+
+    private String bridgeWords(String word1, String word2) {
+        int id1 = snapshot.idOf(word1);
+        int id2 = snapshot.idOf(word2);
+        if (id1 < 0 || id2 < 0) {
+            return "?";
+        }
+        BridgeWordIndex index = graph.bridgeIndex();
+        int[] bridges = new int[snapshot.outDegree(id1)];
+        int count = index.bridgeWords(id1, id2, bridges);
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (result.length() > 0) result.append(' ');
+            result.append(snapshot.wordOf(bridges[i]));
+        }
+        return result.toString();
+    }
+
+    private String generate(String text) throws IOException {
+        List<String> words = new ArrayList<>();
+        WordTokenizer.tokenize(new StringReader(text), words::add);
+        if (words.size() < 2) {
+            return text.trim(); // Not enough words to find bridges
+        }
+        return graph.bridgeIndex().insertBridgeWords(words.toArray(new String[0]), random, sampling);
+    }
 
-        Set<String> pathNodes = highlightedPath == null ? Collections.emptySet() : new HashSet<>(highlightedPath);
-        Set<String> pathEdges = new HashSet<>();
-        if (highlightedPath != null && highlightedPath.size() > 1) {
-            for (int i = 0; i < highlightedPath.size() - 1; i++) {
-                pathEdges.add(highlightedPath.get(i) + "->" + highlightedPath.get(i+1));
+    private void shortest(String word1, String word2, String prefix, Writer out) throws IOException {
+        int source = snapshot.idOf(word1);
+        int target = word2 == null ? -1 : snapshot.idOf(word2);
+        if (source < 0 || (word2 != null && target < 0)) {
+            out.write(prefix + word1 + "\t" + (word2 == null ? "" : word2) + "\t?\t\n");
+            return;
+        }
+        if (word2 != null) {
+            AllPairsShortestPaths tables = allPairs;
+            ShortestPathResult result = tables != null ? tables.query(source, target)
+                    : shortestPathEngine.pointToPoint(source, target, pointSearch);
+            writePath(prefix, word1, word2, result.hasPath() ? result.getDistance() : -1,
+                    result.hasPath() ? result.getPath() : Collections.<String>emptyList(), out);
+            return;
+        }
+        ShortestPathResult result = shortestPathEngine.allTargets(source);
+        List<String> sortedNodes = new ArrayList<>(snapshot.words());
+        Collections.sort(sortedNodes); // Same order as the GUI
+        for (String node : sortedNodes) {
+            int id = snapshot.idOf(node);
+            if (id != source && result.reaches(id)) {
+                writePath(prefix, word1, node, result.distance(id), result.pathTo(id), out);
             }
         }
+    }
+
+    private static void writePath(String prefix, String word1, String word2, long weight, List<String> path,
+                                  Writer out) throws IOException {
+        out.write(prefix + word1 + "\t" + word2 + "\t" + weight + "\t" + String.join(" ", path) + "\n");
+    }
+
+    private void pageRank(String word, String prefix, Writer out) throws IOException {
+        PageRankEngine.Result result = pageRankCache.get();
+        if (result == null) {
+            throw new IOException("PageRank calculation was interrupted.");
+        }
+        if (word != null) {
+            Double rank = result.rankOf(word);
+            out.write(prefix + word + "\t" + (rank == null ? "?" : rank.toString()) + "\n");
+            return;
+        }
+        // Sort descending by PR; ties keep node order
+        Integer[] order = new Integer[snapshot.nodeCount()];
+        for (int id = 0; id < order.length; id++) order[id] = id;
+        double[] ranks = result.ranks;
+        Arrays.sort(order, (a, b) -> Double.compare(ranks[b], ranks[a]));
+        for (int id : order) {
+            out.write(prefix + snapshot.wordOf(id) + "\t" + ranks[id] + "\n");
+        }
+    }
+
+    private void randomWalk(String prefix, Writer out) throws IOException {
+        if (snapshot.nodeCount() == 0) {
+            throw new IllegalArgumentException("No nodes in the graph to start walk.");
+        }
+        StringBuilder walk = new StringBuilder();
+        SplittableRandom walkRandom = new SplittableRandom(random.nextLong());
+        int repeatedEdge = randomWalkEngine.walk(walkRandom.nextInt(snapshot.nodeCount()), walkRandom, () -> false, id -> {
+            if (walk.length() > 0) walk.append(' ');
+            walk.append(snapshot.wordOf(id));
+        });
+        out.write(prefix + (repeatedEdge >= 0 ? "repeated-edge" : "dead-end") + "\t" + walk + "\n");
+    }
 
-        // Define nodes first (optional, but good practice, allows styling)
-        for (String node : nodes) {
-            dot.append("  \"").append(node).append("\"");
-            if (pathNodes.contains(node)) {
-                 dot.append(" [color=red, penwidth=2.0]");
+    // Runs many independent walks in parallel and writes their statistics
+    private void walks(String[] arguments, String prefix, Writer out) throws IOException {
+        long count;
+        long seed;
+        try {
+            if (arguments.length < 1 || arguments.length > 3) throw new NumberFormatException();
+            count = Long.parseLong(arguments[0]);
+            seed = arguments.length >= 2 ? Long.parseLong(arguments[1]) : random.nextLong();
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Usage: walks COUNT [SEED [FILE]]");
+        }
+        RandomWalkEngine.Stats stats;
+        if (arguments.length < 3) {
+            stats = randomWalkEngine.run(count, seed, Runtime.getRuntime().availableProcessors(), () -> false, null);
+        } else {
+            try (WalkOutputWriter walkOut = new WalkOutputWriter(new File(arguments[2]), WALK_FILE_BYTES)) {
+                stats = writeWalks(count, seed, walkOut);
+                out.write(prefix + "file\t" + arguments[2] + "\t" + walkOut.fileCount() + "\t" + walkOut.bytesWritten() + "\n");
             }
-             dot.append(";\n");
         }
+        out.write(prefix + "summary\t" + stats.walks() + "\t" + stats.steps() + "\t"
+                + String.format("%.3f\t%.0f", stats.seconds(), stats.walksPerSecond()) + "\n");
+        for (RandomWalkEngine.Stop stop : RandomWalkEngine.Stop.values()) {
+            out.write(prefix + "stop\t" + stop.name().toLowerCase().replace('_', '-') + "\t" + stats.stops(stop) + "\n");
+        }
+        out.write(prefix + "length\t" + stats.minLength() + "\t" + stats.lengthPercentile(0.5) + "\t"
+                + stats.lengthPercentile(0.9) + "\t" + stats.lengthPercentile(0.99) + "\t" + stats.maxLength() + "\t"
+                + String.format("%.2f", stats.meanLength()) + "\n");
+        long[] histogram = stats.lengthHistogram();
+        for (int k = 0; k < histogram.length; k++) {
+            out.write(prefix + "histogram\t" + (1L << k) + "\t" + ((1L << (k + 1)) - 1) + "\t" + histogram[k] + "\n");
+        }
+    }
 
+    // Runs the walks with every walk written as "WALK STOP WORDS" (words space-separated); one batch per thread
+    private RandomWalkEngine.Stats writeWalks(long count, long seed, WalkOutputWriter walkOut) throws IOException {
+        byte[][] wordBytes = new byte[snapshot.nodeCount()][];
+        for (int id = 0; id < wordBytes.length; id++) {
+            wordBytes[id] = snapshot.wordOf(id).getBytes(StandardCharsets.UTF_8);
+        }
+        byte[][] stopBytes = new byte[RandomWalkEngine.Stop.values().length][];
+        for (RandomWalkEngine.Stop stop : RandomWalkEngine.Stop.values()) {
+            stopBytes[stop.ordinal()] = ("\t" + stop.name().toLowerCase().replace('_', '-') + "\t").getBytes(StandardCharsets.UTF_8);
+        }
+        List<WalkOutputWriter.Batch> batches = Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<WalkOutputWriter.Batch> threadBatch = ThreadLocal.withInitial(() -> {
+            WalkOutputWriter.Batch batch = walkOut.newBatch();
+            batches.add(batch);
+            return batch;
+        });
+        RandomWalkEngine.Stats stats = randomWalkEngine.run(count, seed, Runtime.getRuntime().availableProcessors(),
+                () -> false, (walk, nodes, length, stop) -> {
+                    WalkOutputWriter.Batch batch = threadBatch.get();
+                    batch.append(Long.toString(walk));
+                    batch.append(stopBytes[stop.ordinal()]);
+                    for (int i = 0; i < length; i++) {
+                        if (i > 0) batch.append((byte) ' ');
+                        batch.append(wordBytes[nodes[i]]);
+                    }
+                    batch.append((byte) '\n');
+                    batch.endRecord();
+                });
+        for (WalkOutputWriter.Batch batch : batches) {
+            batch.flush();
+        }
+        walkOut.flush();
+        return stats;
+    }
 
-        // Define edges
-        for (Map.Entry<String, Map<String, Integer>> entry : adjacencyList.entrySet()) {
-            String source = entry.getKey();
-            for (Map.Entry<String, Integer> edge : entry.getValue().entrySet()) {
-                String target = edge.getKey();
-                int weight = edge.getValue();
-                dot.append("  \"").append(source).append("\" -> \"").append(target).append("\"");
-                dot.append(" [label=\"").append(weight).append("\"");
-                 if (pathEdges.contains(source + "->" + target)) {
-                    dot.append(", color=red, penwidth=2.0");
-                }
-                dot.append("];\n");
+    // Writes the latency statistics of every command to stderr
+    private void printLatencies() {
+        for (Map.Entry<String, LatencyStats> entry : latencies.entrySet()) {
+            System.err.println("Latency " + entry.getKey() + ": " + entry.getValue().summary());
+        }
+    }
+
+    public static void main(String[] args) {
+        CommandLineOptions options = new CommandLineOptions(args, "load-mode", "path-search", "seed", "sampling");
+        GraphBuilder.LoadMode mode = options.getEnum("load-mode", GraphBuilder.LoadMode.STREAMING);
+        ShortestPathEngine.PointSearch search = options.getEnum("path-search", ShortestPathEngine.PointSearch.BIDIRECTIONAL);
+        RandomWalkEngine.Sampling sampling = options.getEnum("sampling", RandomWalkEngine.Sampling.UNIFORM);
+        Random random = new Random();
+        String seed = options.getValue("seed");
+        if (seed != null) {
+            try {
+                random = new Random(Long.parseLong(seed));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid seed in --seed=" + seed + ", using a random one.");
             }
         }
+        List<String> positional = options.getPositional();
+        if (positional.isEmpty() || positional.size() > 3) {
+            System.err.println("Usage: java TextGraphCli [--load-mode=streaming|parallel|mmap] [--path-search=bidirectional|early-exit] [--seed=N] [--sampling=uniform|weighted] corpus.txt [queries.txt|-] [out.tsv]");
+            System.exit(2);
+        }
 
-        dot.append("}\n");
-        return dot.toString();
+        try {
+            TextGraphCli cli = new TextGraphCli(mode, search, sampling, random);
+            long start = System.nanoTime();
+            cli.load(positional.get(0));
+            long loadMillis = (System.nanoTime() - start) / 1_000_000;
+            long jvmMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+            System.err.println("Loaded " + cli.getSnapshot().nodeCount() + " nodes and " + cli.getSnapshot().edgeCount()
+                    + " edges in " + loadMillis + " ms; ready " + jvmMillis + " ms after JVM start.");
+
+            String queries = positional.size() > 1 ? positional.get(1) : "-";
+            start = System.nanoTime();
+            long count;
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                         queries.equals("-") ? System.in : new FileInputStream(queries), StandardCharsets.UTF_8));
+                 OutputStream target = BatchBridgeQuery.openOutput(positional.size() == 3 ? positional.get(2) : null);
+                 Writer out = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 1 << 16)) {
+                count = cli.run(in, out);
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.err.printf("Answered %d queries in %.2f s%n", count, seconds);
+            cli.printLatencies();
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
     }
+}
 
-     /**
-     * Generates a simple text representation for the CLI.
-     * @return A string describing the graph.
+// --- Background Tasks ---
+/**
+ * Runs the GUI's operations off the Event Dispatch Thread on one bounded thread pool.
+ * Each task is a SwingWorker: its work runs on the pool, progress and the result are delivered on
+ * the Event Dispatch Thread. Tasks belong to a group (e.g. "shortest-path"), and a group has at
+ * most one pending task: pressing a button again with the same input (the same key) is coalesced
+ * into the task that is already pending, while a different input cancels it and takes its place.
+ * Cancellation interrupts the worker thread and sets a flag that long computations poll through
+ * Progress.isCancelled(); the results of a cancelled task are dropped.
+ * Call submit and cancelAll on the Event Dispatch Thread.
+ */
+final class TaskRunner {
+    /** Passed to the work of a task. */
+    interface Progress {
+        /**
+         * Reports progress; updates are shown on the Event Dispatch Thread.
+         * @param percent 0 to 100, or -1 if the amount of work is unknown.
+         * @param message What the task is doing.
+         */
+        void report(int percent, String message);
+
+        boolean isCancelled();
+    }
+
+    /** The part of a task that runs on the pool. */
+    interface Work<T> {
+        T run(Progress progress) throws Exception;
+    }
+
+    /** Told on the Event Dispatch Thread whenever a task starts, reports progress or ends. */
+    interface Listener {
+        /**
+         * @param pending Number of pending (queued or running) tasks.
+         * @param message Latest message of a pending task, or null if none are pending.
+         * @param percent Its progress, -1 if unknown.
+         */
+        void tasksChanged(int pending, String message, int percent);
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Listener listener;
+    private final Map<String, Job<?>> pending = new LinkedHashMap<>(); // Group -> its pending task
+
+    /**
+     * @param threads Worker threads; tasks beyond that wait in the queue.
+     * @param queueCapacity Tasks that may wait; submit refuses further ones.
      */
-    public String toCliString() {
-        StringBuilder sb = new StringBuilder("Directed Graph (Node -> Target (Weight)):\n");
-         if (nodes.isEmpty()) {
-            return "Graph is empty.\n";
+    TaskRunner(int threads, int queueCapacity, Listener listener) {
+        this.listener = listener;
+        AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "gui-task-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true); // Do not keep the JVM alive after the window closed
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs work on the pool.
+     * @param group Tasks of the same group replace each other.
+     * @param key Identifies the input; a pending task of the group with an equal key is kept instead.
+     * @param title Shown while the task has not reported anything yet.
+     * @param onSuccess Receives the result on the Event Dispatch Thread (not called if cancelled).
+     * @param onError Receives the exception thrown by work on the Event Dispatch Thread.
+     * @return False if the press was coalesced into a pending task or the queue is full.
+     */
+    <T> boolean submit(String group, String key, String title, Work<T> work,
+                       Consumer<T> onSuccess, Consumer<Throwable> onError) {
+        Job<?> previous = pending.get(group);
+        if (previous != null) {
+            if (previous.key.equals(key)) {
+                return false;
+            }
+            previous.cancel(true);
         }
-        List<String> sortedNodes = new ArrayList<>(nodes);
-        Collections.sort(sortedNodes); // Sort nodes alphabetically for consistent output
+        Job<T> job = new Job<>(group, key, title, work, onSuccess, onError);
+        pending.put(group, job);
+        try {
+            executor.execute(job);
+        } catch (RejectedExecutionException e) {
+            pending.remove(group);
+            onError.accept(new IllegalStateException("Too many operations are waiting; try again later."));
+            return false;
+        }
+        notifyListener();
+        return true;
+    }
 
-        for (String node : sortedNodes) {
-            Map<String, Integer> neighbors = getNeighbors(node);
-            if (neighbors.isEmpty()) {
-                 sb.append(node).append(" -> (No outgoing edges)\n");
-            } else {
-                sb.append(node).append(" -> ");
-                List<String> neighborDesc = new ArrayList<>();
-                 neighbors.entrySet().stream()
-                          .sorted(Map.Entry.comparingByKey()) // Sort neighbors alphabetically
-                          .forEach(entry -> neighborDesc.add(entry.getKey() + "(" + entry.getValue() + ")"));
-                 sb.append(String.join(", ", neighborDesc)).append("\n");
+    /**
+     * Cancels the pending task of a group, if any.
+     */
+    void cancel(String group) {
+        Job<?> job = pending.get(group);
+        if (job != null) {
+            job.cancel(true);
+        }
+    }
+
+    /**
+     * @return True if a task of the group is queued or running (and not cancelled).
+     */
+    boolean isPending(String group) {
+        return pending.containsKey(group);
+    }
+
+    /**
+     * Cancels every pending task.
+     */
+    void cancelAll() {
+        for (Job<?> job : new ArrayList<>(pending.values())) {
+            job.cancel(true);
+        }
+    }
+
+    private void notifyListener() {
+        Job<?> latest = null;
+        for (Job<?> job : pending.values()) {
+            latest = job;
+        }
+        listener.tasksChanged(pending.size(), latest == null ? null : latest.message, latest == null ? -1 : latest.percent);
+    }
+
+    private final class Job<T> extends SwingWorker<T, String> implements Progress {
+        final String group;
+        final String key;
+        private final Work<T> work;
+        private final Consumer<T> onSuccess;
+        private final Consumer<Throwable> onError;
+        private volatile String message;
+        private volatile int percent = -1;
+
+        Job(String group, String key, String title, Work<T> work, Consumer<T> onSuccess, Consumer<Throwable> onError) {
+            this.group = group;
+            this.key = key;
+            this.work = work;
+            this.onSuccess = onSuccess;
+            this.onError = onError;
+            this.message = title;
+        }
+
+        @Override
+        protected T doInBackground() throws Exception {
+            return work.run(this);
+        }
+
+        @Override
+        public void report(int percent, String message) {
+            this.percent = Math.max(-1, Math.min(100, percent));
+            this.message = message;
+            publish(message); // Coalesced by SwingWorker into one process() call per EDT round
+        }
+
+        @Override
+        protected void process(List<String> chunks) {
+            if (pending.get(group) == this) {
+                notifyListener();
+            }
+        }
+
+        // Runs on the Event Dispatch Thread when the work returns or the task is cancelled
+        @Override
+        protected void done() {
+            if (pending.get(group) == this) {
+                pending.remove(group);
+            }
+            notifyListener();
+            if (isCancelled()) {
+                return; // The listener has already seen the task end
+            }
+            try {
+                onSuccess.accept(get());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (!(cause instanceof CancellationException)) {
+                    onError.accept(cause);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
         }
-        return sb.toString();
     }
 }
 
 // --- Main Application with GUI ---
 public class TextGraphApp extends JFrame {
 
-    private DirectedGraph graph = null;
+    private volatile DirectedGraph graph = null; // Replaced on the EDT, read by background tasks
     private File lastOpenedFile = null;
-    private String currentGraphDotString = ""; // To store the latest DOT representation
-    private Map<String, Double> pageRankScores = null; // Store calculated PageRank scores
-    private volatile boolean stopRandomWalk = false; // Flag to stop random walk
+    private final PageRankCache pageRankCache = new PageRankCache(PageRankEngine.withDefaults()); // PageRank per graph version
+    private final Object walkLock = new Object(); // Walks run one at a time (they share the output file)
+    private static final int WALK_DISPLAY_CHARS = 200_000; // The output area keeps the end of a long walk
+    private static final int WALK_REFRESH_MILLIS = 100; // A running walk is shown at most this often
+    private OutputTail walkOutput = null; // Text of the latest walk (EDT only)
+    private long walkShownLength = -1; // walkOutput.length() when it was last shown
+    private Timer walkRefresh = null; // Shows the running walk; null when no walk runs
     private Map<String, Integer> wordCounts = null;
+    private GraphBuilder graphBuilder = null; // Knows the loaded text's last word; appends go through it
+    private boolean appendRunning = false; // Graph operations are disabled until the append task ends (EDT only)
+    private GraphBuilder.LoadMode loadMode = GraphBuilder.LoadMode.STREAMING; // Set with --load-mode=...
+    private ShortestPathEngine.PointSearch pointSearch = ShortestPathEngine.PointSearch.BIDIRECTIONAL; // Set with --path-search=...
+    private final ThreadLocal<ShortestPathEngine> shortestPathEngines = new ThreadLocal<>(); // Per task thread
+    private volatile AllPairsShortestPaths allPairs = null; // Precomputed tables, if any
+    private static final int MAX_LISTED_PATHS = 100; // All Shortest Paths lists at most this many
+    private GraphRenderer.Backend renderBackend = GraphRenderer.Backend.BUILTIN; // Set with --renderer=...
+    private RandomWalkEngine.Sampling sampling = RandomWalkEngine.Sampling.UNIFORM; // Walks and bridges; set with --sampling=...
+    private final GraphRenderer graphRenderer = new GraphRenderer(); // Keeps the last layout
+    private final Object renderLock = new Object(); // Renderings run one at a time
+    private JFrame graphViewFrame = null; // Window showing the built-in renderer's picture
+    private JLabel graphViewLabel = null;
 
     // GUI Components
     private JTextArea outputArea;
-    private JButton btnLoadFile, btnShowGraph, btnQueryBridge, btnGenerateText, btnShortestPath, btnPageRank, btnRandomWalk, btnStopWalk;
+    private JButton btnLoadFile, btnAppendFile, btnShowGraph, btnQueryBridge, btnGenerateText, btnShortestPath, btnAllShortestPaths, btnKShortestPaths, btnPrecomputePaths, btnPageRank, btnRandomWalk, btnStopWalk;
     private JTextField word1Input, word2Input, textInput;
-    private JTextField spWord1Input, spWord2Input;
+    private JTextField spWord1Input, spWord2Input, spPathCountInput;
     private JLabel statusLabel;
     private JFileChooser fileChooser;
+    private JProgressBar taskProgress;
+    private JButton btnCancelTasks;
+    // GUI operations run here, off the Event Dispatch Thread
+    private final TaskRunner taskRunner = new TaskRunner(Math.max(2, Runtime.getRuntime().availableProcessors()), 16,
+            this::showTaskStatus);
 
     public TextGraphApp() {
         super("Text to Directed Graph Analyzer");
@@ -222,10 +5469,14 @@ public class TextGraphApp extends JFrame {
         outputArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
 
         btnLoadFile = new JButton("Load Text File");
+        btnAppendFile = new JButton("Append Text File");
         btnShowGraph = new JButton("Show Graph");
         btnQueryBridge = new JButton("Query Bridge Words");
         btnGenerateText = new JButton("Generate New Text");
         btnShortestPath = new JButton("Shortest Path");
+        btnAllShortestPaths = new JButton("All Shortest Paths");
+        btnKShortestPaths = new JButton("K Shortest Paths");
+        btnPrecomputePaths = new JButton("Precompute All Paths");
         btnPageRank = new JButton("Calc PageRank (All)"); // Changed button text
         btnRandomWalk = new JButton("Random Walk");
         btnStopWalk = new JButton("Stop Walk");
@@ -237,11 +5488,18 @@ public class TextGraphApp extends JFrame {
 
         spWord1Input = new JTextField(10); // <-- 新增：Shortest Path 输入框 1
         spWord2Input = new JTextField(10); // <-- 新增：Shortest Path 输入框 2
+        spPathCountInput = new JTextField("3", 3); // k for K Shortest Paths
 
 
         statusLabel = new JLabel("Status: No file loaded.");
         statusLabel.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
 
+        taskProgress = new JProgressBar(0, 100);
+        taskProgress.setStringPainted(true);
+        taskProgress.setVisible(false); // Shown while background operations run
+        btnCancelTasks = new JButton("Cancel");
+        btnCancelTasks.setVisible(false);
+
         fileChooser = new JFileChooser();
         fileChooser.setFileSelectionMode(JFileChooser.FILES_ONLY);
 
@@ -255,7 +5513,10 @@ public class TextGraphApp extends JFrame {
         // --- Top Panel: File Loading ---
         JPanel topPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
         topPanel.add(btnLoadFile);
+        topPanel.add(btnAppendFile);
         topPanel.add(statusLabel);
+        topPanel.add(taskProgress);
+        topPanel.add(btnCancelTasks);
         add(topPanel, BorderLayout.NORTH);
 
         // --- Center Panel: Output Area ---
@@ -299,6 +5560,11 @@ public class TextGraphApp extends JFrame {
         shortestPathPanel.add(new JLabel("Word 2 (Optional):"));
         shortestPathPanel.add(spWord2Input);
         shortestPathPanel.add(btnShortestPath);
+        shortestPathPanel.add(btnAllShortestPaths);
+        shortestPathPanel.add(new JLabel("k:"));
+        shortestPathPanel.add(spPathCountInput);
+        shortestPathPanel.add(btnKShortestPaths);
+        shortestPathPanel.add(btnPrecomputePaths);
         // Reusing word1Input and word2Input for Shortest Path for simplicity
         bottomPanel.add(shortestPathPanel);
 
@@ -323,10 +5589,14 @@ public class TextGraphApp extends JFrame {
     }
 
     private void setGraphOperationButtonsEnabled(boolean enabled) {
+        btnAppendFile.setEnabled(enabled);
         btnShowGraph.setEnabled(enabled);
         btnQueryBridge.setEnabled(enabled);
         btnGenerateText.setEnabled(enabled);
         btnShortestPath.setEnabled(enabled);
+        btnAllShortestPaths.setEnabled(enabled);
+        btnKShortestPaths.setEnabled(enabled);
+        btnPrecomputePaths.setEnabled(enabled);
         btnPageRank.setEnabled(enabled);
         btnRandomWalk.setEnabled(enabled);
          // btnStopWalk is handled separately
@@ -337,6 +5607,9 @@ public class TextGraphApp extends JFrame {
         // --- File Loading Action ---
         btnLoadFile.addActionListener(e -> loadFileAndGenerateGraph());
 
+        // --- File Appending Action ---
+        btnAppendFile.addActionListener(e -> appendFileToGraph());
+
         // --- Show Graph Action ---
         btnShowGraph.addActionListener(e -> {
             if (graph == null) {
@@ -346,6 +5619,9 @@ public class TextGraphApp extends JFrame {
             showDirectedGraph(graph, null); // Show graph without highlighting initially
         });
 
+        // --- Cancel Action: stops every running operation ---
+        btnCancelTasks.addActionListener(e -> taskRunner.cancelAll());
+
         // --- Query Bridge Words Action ---
         btnQueryBridge.addActionListener(e -> {
             if (graph == null) {
@@ -358,9 +5634,8 @@ public class TextGraphApp extends JFrame {
                  outputArea.setText("Please enter both Word 1 and Word 2 for bridge word query.");
                  return;
              }
-             // Clear previous shortest path highlighting if any
-             currentGraphDotString = graph.toDotFormat(null);
-             outputArea.setText(queryBridgeWords(word1, word2));
+             taskRunner.submit("bridge", word1 + " " + word2, "Querying bridge words",
+                     progress -> queryBridgeWords(word1, word2), outputArea::setText, this::showTaskError);
         });
 
         // --- Generate New Text Action ---
@@ -374,8 +5649,9 @@ public class TextGraphApp extends JFrame {
                  outputArea.setText("Please enter text to generate from.");
                  return;
              }
-             outputArea.setText("Original Text: " + inputText + "\n");
-             outputArea.append("Generated Text: " + generateNewText(inputText));
+             taskRunner.submit("generate", inputText, "Generating text",
+                     progress -> "Original Text: " + inputText + "\n" + "Generated Text: " + generateNewText(inputText),
+                     outputArea::setText, this::showTaskError);
         });
 
 
@@ -395,39 +5671,77 @@ public class TextGraphApp extends JFrame {
 
              // If word2 is empty, calculate path from word1 to all other nodes
             if (word2.isEmpty()) {
-                outputArea.setText(calcShortestPath(word1, null)); // Pass null for word2
-                currentGraphDotString = graph.toDotFormat(null); // No highlighting for all paths
+                taskRunner.submit("shortest-path", word1, "Finding shortest paths",
+                        progress -> calcShortestPath(word1, null), // Pass null for word2
+                        outputArea::setText, this::showTaskError);
             } else {
                  // Case: Path between word1 and word2
-                 String resultText = calcShortestPath(word1, word2); // Calculate path ONCE and store result
-                 outputArea.setText(resultText); // Display the result (path, "No path...", or "Error: Word not found...")
- 
-                 // --- CORRECTED CHECK: Only proceed if a valid path was ACTUALLY found ---
-                 // A successful path result will NOT start with "No path found" AND will NOT start with "Error:"
-                 boolean pathFoundSuccessfully = !resultText.startsWith("No path found") && !resultText.startsWith("Error:");
- 
-                 if (pathFoundSuccessfully) {
-                     // Both words exist AND a path was found by calcShortestPath.
-                     // Now, get the path list for highlighting.
-                     List<String> path = findShortestPathList(word1, word2);
- 
-                     // Double-check if findShortestPathList succeeded (it should, but be safe)
-                     if (path != null && !path.isEmpty()) {
+                 String error = checkShortestPathWords(word1, word2);
+                 if (error != null) {
+                     outputArea.setText(error);
+                     return;
+                 }
+
+                 // One search: the same result provides the text and the path to highlight
+                 DirectedGraph searched = graph;
+                 taskRunner.submit("shortest-path", word1 + " " + word2, "Finding the shortest path",
+                         progress -> findShortestPath(word1, word2), pathResult -> {
+                     outputArea.setText(formatShortestPath(pathResult));
+                     if (pathResult.hasPath()) {
                          System.out.println("[DEBUG] Path found successfully. Highlighting graph."); // Optional Debug
-                         showDirectedGraph(graph, path); // Show graph *with* highlighting
+                         showDirectedGraphWithPaths(searched, Collections.singletonList(pathResult.getPath()),
+                                 formatShortestPath(pathResult) + "\n\n"); // Show graph *with* highlighting
                      } else {
-                         // This indicates an unexpected inconsistency between the two path functions.
-                         System.err.println("Warning: Path text indicated success, but findShortestPathList failed to return a valid path. Showing unhighlighted graph.");
-                         showDirectedGraph(graph, null); // Fallback to showing unhighlighted graph
+                         // "No path found...": do not show the graph
+                         System.out.println("[DEBUG] Path not found OR word missing. Graph display skipped."); // Optional Debug
                      }
-                 } else {
-                     // EITHER "No path found..." OR "Error: Word ... not found..." was returned.
-                     // In both these failure cases, DO NOT show the graph.
-                     System.out.println("[DEBUG] Path not found OR word missing. Graph display skipped."); // Optional Debug
-                     currentGraphDotString = graph.toDotFormat(null); // Ensure graph data has no old highlight
-                 }
-                 // --- End Corrected Check ---
+                 }, this::showTaskError);
+            }
+        });
+
+
+         // --- All Shortest Paths / K Shortest Paths Actions ---
+        btnAllShortestPaths.addActionListener(e -> showSeveralPaths(false));
+        btnKShortestPaths.addActionListener(e -> showSeveralPaths(true));
+
+
+         // --- Precompute All Paths Action ---
+        btnPrecomputePaths.addActionListener(e -> {
+            if (graph == null) {
+                outputArea.setText("Error: No graph generated. Load a file first.");
+                return;
             }
+            GraphSnapshot snapshot = graph.snapshot();
+            File input = lastOpenedFile;
+            outputArea.setText("Computing shortest paths between all pairs of " + snapshot.nodeCount() + " nodes...\n");
+
+            taskRunner.submit("precompute", Integer.toHexString(System.identityHashCode(snapshot)),
+                    "Computing all-pairs shortest paths", progress -> {
+                String result;
+                try {
+                    long start = System.nanoTime();
+                    AllPairsShortestPaths tables = AllPairsShortestPaths.compute(snapshot,
+                            Runtime.getRuntime().availableProcessors(), progress::isCancelled,
+                            percent -> progress.report(percent, "Computing all-pairs shortest paths"));
+                    allPairs = tables;
+                    result = "All-pairs shortest paths ready (" + (tables.isDense() ? "dense" : "sparse") + ", "
+                            + tables.entryCount() + " entries) in " + (System.nanoTime() - start) / 1_000_000 + " ms.\n"
+                            + "Shortest path queries are now answered from the tables.\n";
+                    if (input != null) {
+                        File file = AllPairsShortestPaths.fileFor(input);
+                        progress.report(-1, "Saving " + file.getName());
+                        try {
+                            tables.save(file, input);
+                            result += "Saved to: " + file.getAbsolutePath() + "\n";
+                        } catch (IOException ex) {
+                            result += "Could not save the tables: " + ex.getMessage() + "\n";
+                        }
+                    }
+                } catch (IllegalStateException ex) {
+                    result = "Error: " + ex.getMessage();
+                }
+                return result;
+            }, outputArea::append, this::showTaskError);
         });
 
 
@@ -437,7 +5751,8 @@ public class TextGraphApp extends JFrame {
                 outputArea.setText("Error: No graph generated. Load a file first.");
                 return;
             }
-            calculateAndDisplayAllPageRanks();
+            taskRunner.submit("pagerank", "", "Calculating PageRank",
+                    progress -> pageRankReport(), outputArea::setText, this::showTaskError);
         });
 
 
@@ -447,28 +5762,29 @@ public class TextGraphApp extends JFrame {
                 outputArea.setText("Error: No graph generated. Load a file first.");
                 return;
             }
-            stopRandomWalk = false; // Reset stop flag
-            btnRandomWalk.setEnabled(false); // Disable start while running
+            setGraphOperationButtonsEnabled(false); // Disable others (and start) during walk
             btnStopWalk.setEnabled(true);   // Enable stop
-            setGraphOperationButtonsEnabled(false); // Disable others during walk
-
-            // Run walk in a separate thread to avoid blocking GUI
-            new Thread(() -> {
-                String result = randomWalk();
-                 // Update GUI back on the Event Dispatch Thread
-                SwingUtilities.invokeLater(() -> {
-                    outputArea.setText(result);
-                    btnRandomWalk.setEnabled(true);  // Re-enable start
-                    btnStopWalk.setEnabled(false); // Disable stop
-                    setGraphOperationButtonsEnabled(true); // Re-enable others
-                });
-            }).start();
+
+            // The walk runs as a task and streams its text into a bounded buffer; a timer shows it
+            OutputTail output = new OutputTail(WALK_DISPLAY_CHARS);
+            walkOutput = output;
+            walkShownLength = -1;
+            walkRefresh = new Timer(WALK_REFRESH_MILLIS, tick -> showWalkOutput(output));
+            walkRefresh.start();
+            outputArea.setText("");
+            taskRunner.submit("random-walk", "", "Random walk", progress -> {
+                try {
+                    randomWalk(progress::isCancelled, output::append);
+                } finally {
+                    SwingUtilities.invokeLater(() -> showWalkOutput(output)); // Also after a stop: the final status
+                }
+                return null;
+            }, result -> { }, this::showTaskError);
         });
 
          // --- Stop Random Walk Action ---
         btnStopWalk.addActionListener(e -> {
-             stopRandomWalk = true; // Set the flag
-             outputArea.append("\n\n>>> Random walk stop requested <<<");
+             taskRunner.cancel("random-walk"); // Interrupts the walk; what it walked so far is kept
              btnStopWalk.setEnabled(false); // Disable stop button after clicking
          });
     }
@@ -483,103 +5799,214 @@ public class TextGraphApp extends JFrame {
         int returnValue = fileChooser.showOpenDialog(this);
         if (returnValue == JFileChooser.APPROVE_OPTION) {
             File selectedFile = fileChooser.getSelectedFile();
-            lastOpenedFile = selectedFile;
+            GraphBuilder.LoadMode mode = loadMode;
             outputArea.setText("Loading file: " + selectedFile.getAbsolutePath() + "\n");
-            try {
-                graph = buildGraphFromFile(selectedFile.getAbsolutePath());
-                outputArea.append("Graph generated successfully.\n");
-                outputArea.append("Nodes: " + graph.getAllNodes().size() + "\n");
-                // Calculate initial dot string without highlighting
-                currentGraphDotString = graph.toDotFormat(null);
-                 pageRankScores = null; // Reset pagerank on new graph
-                setGraphOperationButtonsEnabled(true);
-                statusLabel.setText("Status: File loaded: " + selectedFile.getName());
-
-            } catch (IOException ex) {
-                 graph = null; // Ensure graph is null on error
-                setGraphOperationButtonsEnabled(false);
-                outputArea.append("Error reading file: " + ex.getMessage());
-                statusLabel.setText("Status: Error loading file.");
-                 JOptionPane.showMessageDialog(this,
-                        "Error reading file: " + ex.getMessage(),
-                        "File Error", JOptionPane.ERROR_MESSAGE);
-            } catch (Exception ex) {
-                 graph = null;
-                 setGraphOperationButtonsEnabled(false);
-                 outputArea.append("An unexpected error occurred during graph generation: " + ex.getMessage());
-                 statusLabel.setText("Status: Error generating graph.");
-                 JOptionPane.showMessageDialog(this,
-                         "Error generating graph: " + ex.getMessage(),
-                         "Graph Error", JOptionPane.ERROR_MESSAGE);
-            }
+            taskRunner.cancelAll(); // Results for the previous graph are no longer wanted
+            taskRunner.submit("load", selectedFile.getAbsolutePath(), "Loading " + selectedFile.getName(),
+                    progress -> {
+                        LoadedFile loaded = new LoadedFile();
+                        loaded.builder = readGraph(selectedFile, mode, progress);
+                        progress.report(-1, "Indexing the graph");
+                        GraphSnapshot snapshot = loaded.builder.getGraph().snapshot();
+                        loaded.allPairs = readAllPairs(selectedFile, snapshot, loaded);
+                        return loaded;
+                    }, loaded -> {
+                        lastOpenedFile = selectedFile;
+                        graph = useBuilder(loaded.builder);
+                        outputArea.append("Graph generated successfully.\n");
+                        outputArea.append("Nodes: " + graph.snapshot().nodeCount() + "\n");
+                        pageRankCache.reset(graph, wordCounts); // Reset pagerank on new graph
+                        outputArea.append(loaded.log.toString());
+                        allPairs = loaded.allPairs;
+                        setGraphOperationButtonsEnabled(true);
+                        statusLabel.setText("Status: File loaded: " + selectedFile.getName());
+                    }, ex -> {
+                        lastOpenedFile = selectedFile;
+                        graph = null; // Ensure graph is null on error
+                        pageRankCache.reset(null, null);
+                        allPairs = null;
+                        setGraphOperationButtonsEnabled(false);
+                        if (ex instanceof IOException) {
+                            outputArea.append("Error reading file: " + ex.getMessage());
+                            statusLabel.setText("Status: Error loading file.");
+                            JOptionPane.showMessageDialog(this,
+                                    "Error reading file: " + ex.getMessage(),
+                                    "File Error", JOptionPane.ERROR_MESSAGE);
+                        } else {
+                            outputArea.append("An unexpected error occurred during graph generation: " + ex.getMessage());
+                            statusLabel.setText("Status: Error generating graph.");
+                            JOptionPane.showMessageDialog(this,
+                                    "Error generating graph: " + ex.getMessage(),
+                                    "Graph Error", JOptionPane.ERROR_MESSAGE);
+                        }
+                    });
         }
      }
 
+     // The last characters written to it: a ring buffer, so a long walk does not grow the output area
+     private static final class OutputTail {
+         private final char[] ring;
+         private long length = 0; // Characters appended so far
+
+         OutputTail(int capacity) {
+             ring = new char[capacity];
+         }
+
+         synchronized void append(String text) {
+             int from = Math.max(0, text.length() - ring.length); // Only the end of a huge text fits
+             int at = (int) ((length + from) % ring.length);
+             int first = Math.min(text.length() - from, ring.length - at);
+             text.getChars(from, from + first, ring, at);
+             text.getChars(from + first, text.length(), ring, 0);
+             length += text.length();
+         }
+
+         synchronized long length() {
+             return length;
+         }
+
+         synchronized String text() {
+             if (length <= ring.length) {
+                 return new String(ring, 0, (int) length);
+             }
+             int start = (int) (length % ring.length);
+             return "[... " + (length - ring.length) + " earlier characters not shown ...]\n"
+                     + new String(ring, start, ring.length - start) + new String(ring, 0, start);
+         }
+     }
+
+     // Shows the latest walk's text if it changed since the last time
+     private void showWalkOutput(OutputTail output) {
+         if (output != walkOutput || output.length() == walkShownLength) {
+             return;
+         }
+         walkShownLength = output.length();
+         outputArea.setText(output.text());
+         outputArea.setCaretPosition(outputArea.getDocument().getLength());
+     }
 
      /**
-      * Helper for Function 1: Reads file content and builds the graph object.
+      * Appends a text file to the loaded graph: only the new file is read and tokenized, and its first
+      * word is linked to the last word of the text so far. Caches follow through the graph's change
+      * listeners. A cancelled append keeps the words read until then.
       */
-     private DirectedGraph buildGraphFromFile(String filePath) throws IOException {
-        DirectedGraph newGraph = new DirectedGraph();
-        this.wordCounts = new HashMap<>();
-        long totalWordsInDoc = 0;
-        StringBuilder textContent = new StringBuilder();
-        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(filePath), StandardCharsets.UTF_8))) {
-             String line;
-             while ((line = reader.readLine()) != null) {
-                 textContent.append(line.trim()).append(" "); // Treat newline as space
-             }
+     private void appendFileToGraph() {
+        if (graph == null) {
+            outputArea.setText("Error: No graph generated. Load a file first.");
+            return;
+        }
+        if (taskRunner.isPending("append")) {
+            outputArea.setText("Error: Another file is still being appended.");
+            return;
+        }
+        int returnValue = fileChooser.showOpenDialog(this);
+        if (returnValue == JFileChooser.APPROVE_OPTION) {
+            File selectedFile = fileChooser.getSelectedFile();
+            GraphBuilder builder = graphBuilder;
+            outputArea.setText("Appending file: " + selectedFile.getAbsolutePath() + "\n");
+            taskRunner.submit("append", selectedFile.getAbsolutePath(), "Appending " + selectedFile.getName(),
+                    progress -> {
+                        try (Reader in = new InputStreamReader(openWithProgress(selectedFile, "Appending", progress),
+                                StandardCharsets.UTF_8)) {
+                            return builder.append(in);
+                        }
+                    }, change -> {
+                        outputArea.append("Text appended: " + change.words + " words, " + change.addedNodes
+                                + " new nodes, " + change.addedEdges + " new edges.\n");
+                        outputArea.append("Nodes: " + graph.getNodeCount() + ", edges: " + graph.getEdgeCount() + "\n");
+                        statusLabel.setText("Status: Appended: " + selectedFile.getName());
+                    }, this::showTaskError);
+            // Even a failed or cancelled append keeps what it read, so the graph is no longer that of
+            // one file: precomputed paths must not be saved for it
+            lastOpenedFile = null;
+            appendRunning = true;
+            setGraphOperationButtonsEnabled(false); // Other tasks would read the graph while it changes
+        }
+     }
+
+     // What a load task produced; taken over on the Event Dispatch Thread
+     private static final class LoadedFile {
+         GraphBuilder builder;
+         AllPairsShortestPaths allPairs;
+         final StringBuilder log = new StringBuilder(); // Messages for the output area
+     }
+
+     // Reads the file on a task thread, from its graph snapshot if there is a current one.
+     // Streaming loads report progress by bytes read and stop when cancelled.
+     private static GraphBuilder readGraph(File file, GraphBuilder.LoadMode mode, TaskRunner.Progress progress) throws IOException {
+         progress.report(-1, "Loading " + file.getName());
+         return GraphSnapshotFile.loadOrBuild(file, () -> readText(file, mode, progress));
+     }
+
+     private static GraphBuilder readText(File file, GraphBuilder.LoadMode mode, TaskRunner.Progress progress) throws IOException {
+         if (mode != GraphBuilder.LoadMode.STREAMING) {
+             progress.report(-1, "Loading " + file.getName());
+             return GraphBuilder.fromFile(file.getAbsolutePath(), mode);
          }
+         try (InputStream in = openWithProgress(file, "Loading", progress)) {
+             return GraphBuilder.fromStream(in);
+         }
+     }
 
-        String processedText = textContent.toString()
-                .toLowerCase() // Convert to lowercase
-                .replaceAll("[^a-z\\s]", " ") // Replace non-letters/non-whitespace with space
-                .replaceAll("\\s+", " "); // Collapse multiple spaces into one
+     // Opens a file whose reads report progress by bytes read and fail once the task is cancelled
+     private static InputStream openWithProgress(File file, String verb, TaskRunner.Progress progress) throws IOException {
+         long size = Math.max(1, file.length());
+         return new FilterInputStream(new FileInputStream(file)) {
+             private long read = 0;
+             private int lastPercent = -1;
+
+             @Override
+             public int read(byte[] b, int off, int len) throws IOException {
+                 if (progress.isCancelled()) {
+                     throw new InterruptedIOException(verb + " cancelled.");
+                 }
+                 int n = super.read(b, off, len);
+                 if (n > 0) {
+                     read += n;
+                     int percent = (int) (100 * read / size);
+                     if (percent != lastPercent) {
+                         lastPercent = percent;
+                         progress.report(percent, verb + " " + file.getName());
+                     }
+                 }
+                 return n;
+             }
+         };
+     }
 
-        String[] words = processedText.trim().split("\\s+"); // Split by one or more spaces
+     // Loads precomputed shortest path tables saved next to the input file, if they match the new graph
+     private static AllPairsShortestPaths readAllPairs(File input, GraphSnapshot snapshot, LoadedFile loaded) {
+         File file = AllPairsShortestPaths.fileFor(input);
+         try {
+             AllPairsShortestPaths tables = AllPairsShortestPaths.load(file, input, snapshot);
+             if (tables != null) {
+                 loaded.log.append("Loaded precomputed shortest paths from: ").append(file.getName()).append("\n");
+             }
+             return tables;
+         } catch (IOException ex) {
+             loaded.log.append("Ignoring precomputed shortest paths: ").append(ex.getMessage()).append("\n");
+             return null;
+         }
+     }
 
-        if (words.length > 0 && !words[0].isEmpty()) {
-            for (String word : words) {
-                if (!word.isEmpty()) {
-                    wordCounts.put(word, wordCounts.getOrDefault(word, 0) + 1);
-                    totalWordsInDoc++; // 累加文档中的总词数（有效的）
-                }
-            }
-       }
-        if (totalWordsInDoc < 2) { // 使用 totalWordsInDoc 判断更准确
-            outputArea.append("Warning: Not enough words in the text to form edges or meaningful frequencies.\n");
-            // 即使只有一个词，也要加入图和词频 (如果需要单独节点的 PR)
-            if (totalWordsInDoc == 1) {
-                String singleWord = words[0]; // 确保 words[0] 存在且非空
-                if (!singleWord.isEmpty()){
-                    newGraph.addNode(singleWord);
-                    // wordCounts 已在上面循环中添加
-                }
-            }
-            // 如果 totalWordsInDoc = 0, wordCounts 也是空的，图也是空的
-            return newGraph;
-        }
+     // Takes over the graph and word counts of a loaded file
+     private DirectedGraph useBuilder(GraphBuilder builder) {
+        this.graphBuilder = builder;
+        this.wordCounts = builder.getWordCounts();
+        builder.getGraph().addChangeListener((changed, change) -> allPairs = null); // Tables of the old weights
+        long totalWordsInDoc = builder.getTotalWords();
 
-        for (int i = 0; i < words.length - 1; i++) {
-            String word1 = words[i];
-            String word2 = words[i+1];
-            if (!word1.isEmpty() && !word2.isEmpty()) {
-                newGraph.addEdge(word1, word2); // addEdge 内部会调用 addNode
-            }
+        if (totalWordsInDoc < 2) {
+            outputArea.append("Warning: Not enough words in the text to form edges or meaningful frequencies.\n");
+            // A single word is still added as a node by the builder
         }
-        // 确保最后一个词也被添加为节点 (addEdge 内部会处理，但以防万一)
-        // String lastWord = words[words.length - 1];
-        // if (!lastWord.isEmpty()) {
-        //    newGraph.addNode(lastWord); // addEdge 已确保节点存在
-        // }
 
         // 打印词频信息 (可选调试)
-        System.out.println("[DEBUG] Word Counts: " + wordCounts);
+        System.out.println("[DEBUG] Distinct words: " + wordCounts.size());
         System.out.println("[DEBUG] Total words processed for TF: " + totalWordsInDoc);
-        System.out.println("[DEBUG] Final Word Counts: " + this.wordCounts);
 
-         return newGraph;    
-    }   
+         return builder.getGraph();
+    }
 
 
      /**
@@ -588,83 +6015,232 @@ public class TextGraphApp extends JFrame {
       * @param highlightedPath Optional list of nodes representing a path to highlight.
       */
       public void showDirectedGraph(DirectedGraph G, List<String> highlightedPath) {
+         showDirectedGraphWithPaths(G, highlightedPath == null
+                 ? Collections.emptyList() : Collections.singletonList(highlightedPath));
+      }
+
+     /**
+      * Displays the graph like showDirectedGraph, highlighting every node and edge on any of the paths.
+      * @param G The graph to display.
+      * @param highlightedPaths Paths to highlight, each a list of nodes. Can be empty.
+      */
+      public void showDirectedGraphWithPaths(DirectedGraph G, Collection<? extends List<String>> highlightedPaths) {
+         showDirectedGraphWithPaths(G, highlightedPaths, "");
+      }
+
+      // As above, with text shown before the CLI format
+      private void showDirectedGraphWithPaths(DirectedGraph G, Collection<? extends List<String>> highlightedPaths, String header) {
          if (G == null) {
              outputArea.setText("Graph is not generated yet.");
              return;
          }
 
-         // 1. Display in CLI format in the output area
-         outputArea.setText("--- Graph Structure (CLI Format) ---\n");
-         outputArea.append(G.toCliString());
-         outputArea.append("\n--- End of CLI Format ---\n\n");
+         // 1. - 3. The CLI format, the DOT file and the picture are produced off the Event Dispatch Thread
+         GraphSnapshot snapshot = G.snapshot();
+         List<List<String>> paths = new ArrayList<>(highlightedPaths);
+         String title;
+         if (renderBackend == GraphRenderer.Backend.DOT) {
+             title = "Rendering with Graphviz";
+         } else if (graphRenderer.hasLayoutFor(snapshot)) {
+             title = "Drawing the graph (reusing the last layout)";
+         } else {
+             title = "Laying out and drawing " + snapshot.nodeCount() + " nodes";
+         }
+         outputArea.setText(header + title + " in the background...\n");
+         // A newer rendering cancels an older one; pressing the same button twice does not restart it
+         taskRunner.submit("render", System.identityHashCode(snapshot) + " " + renderBackend + " " + paths, title,
+                 progress -> renderGraph(G, snapshot, paths, progress),
+                 rendering -> showRendering(rendering, header), this::showTaskError);
+     }
 
-         // 2. Generate DOT file and attempt to create image
-         String dotFileName = "graph_output.dot";
-         String pngFileName = "graph_output.png";
-         currentGraphDotString = G.toDotFormat(highlightedPath); // Update dot string with potential highlight
+     // What a rendering produced; shown on the Event Dispatch Thread
+     private static final class Rendering {
+         String cliText;
+         final StringBuilder log = new StringBuilder(); // Messages for the output area
+         BufferedImage image = null; // Picture of the built-in renderer
+         File imageToOpen = null; // Picture written by Graphviz
+         String warningTitle = null; // Set if a dialog should be shown
+         String warningText;
+         int warningType;
+
+         void warn(String title, String text, int type) {
+             warningTitle = title;
+             warningText = text;
+             warningType = type;
+         }
+     }
 
-         try (PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(dotFileName), StandardCharsets.UTF_8))) {
-             out.println(currentGraphDotString);
-             outputArea.append("Graph DOT file saved as: " + dotFileName + "\n");
-         } catch (IOException e) {
-             outputArea.append("Error writing DOT file: " + e.getMessage() + "\n");
-             JOptionPane.showMessageDialog(this,
-                     "Could not save DOT file: " + e.getMessage(),
-                     "File Save Error", JOptionPane.ERROR_MESSAGE);
-             return; // Don't proceed if DOT file failed
+     // Writes the DOT file and renders the picture with the selected backend (runs on a task thread).
+     // Renderings run one at a time; a cancelled one stops and its results are dropped.
+     private Rendering renderGraph(DirectedGraph G, GraphSnapshot snapshot, List<List<String>> paths,
+                                   TaskRunner.Progress progress) throws InterruptedException {
+         Rendering rendering = new Rendering();
+         progress.report(-1, "Formatting the graph");
+         rendering.cliText = G.toCliString();
+         synchronized (renderLock) {
+             if (progress.isCancelled()) {
+                 throw new CancellationException();
+             }
+             progress.report(-1, "Writing the DOT file");
+             String dotFileName = "graph_output.dot";
+             String pngFileName = "graph_output.png";
+             // Streamed to the file; the println after the text keeps the trailing line separator
+             try (PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(dotFileName), StandardCharsets.UTF_8), 1 << 16))) {
+                 new DotExporter(snapshot).write(out, paths); // Update dot file with potential highlight
+                 out.println();
+                 if (out.checkError()) {
+                     throw new IOException("write failed");
+                 }
+             } catch (IOException e) {
+                 rendering.log.append("Error writing DOT file: ").append(e.getMessage()).append("\n");
+                 rendering.warn("File Save Error", "Could not save DOT file: " + e.getMessage(), JOptionPane.ERROR_MESSAGE);
+                 return rendering; // Don't proceed if DOT file failed
+             }
+             rendering.log.append("Graph DOT file saved as: ").append(dotFileName).append("\n");
+
+             if (renderBackend == GraphRenderer.Backend.DOT) {
+                 progress.report(-1, "Rendering with Graphviz");
+                 renderWithGraphviz(dotFileName, pngFileName, rendering, progress);
+                 return rendering;
+             }
+             try {
+                 long start = System.nanoTime();
+                 boolean reused = graphRenderer.hasLayoutFor(snapshot);
+                 progress.report(-1, reused ? "Drawing the graph" : "Laying out " + snapshot.nodeCount() + " nodes");
+                 BufferedImage image = graphRenderer.render(snapshot, paths, progress::isCancelled);
+                 long millis = (System.nanoTime() - start) / 1_000_000;
+                 progress.report(-1, "Writing " + pngFileName);
+                 ImageIO.write(image, "png", new File(pngFileName));
+                 rendering.log.append("Graph image generated in ").append(millis).append(" ms")
+                         .append(reused ? " (layout reused)" : "").append(": ").append(pngFileName).append("\n");
+                 rendering.image = image;
+             } catch (IOException e) {
+                 rendering.log.append("Error writing image file: ").append(e.getMessage()).append("\n");
+             }
+             return rendering;
          }
+     }
 
-         // 3. Attempt to generate PNG using Graphviz 'dot' command
+     // Optional backend: Graphviz 'dot', as before, but waited for on the task thread
+     private void renderWithGraphviz(String dotFileName, String pngFileName, Rendering rendering,
+                                     TaskRunner.Progress progress) throws InterruptedException {
+         File errorFile = null;
          try {
             // Command: dot -Tpng graph_output.dot -o graph_output.png
+            errorFile = File.createTempFile("graphviz", ".err");
             ProcessBuilder pb = new ProcessBuilder("dot", "-Tpng", dotFileName, "-o", pngFileName);
+            pb.redirectError(errorFile); // Captures errors without a reader thread, so waiting can be cancelled
              Process process = pb.start();
-
-            // Capture potential errors from the 'dot' command
-            StringBuilder errorOutput = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    errorOutput.append(line).append("\n");
-                }
-            }
-
-             int exitCode = process.waitFor(); // Wait for the command to complete
+             try {
+                 while (!process.waitFor(100, TimeUnit.MILLISECONDS)) {
+                     if (progress.isCancelled()) {
+                         throw new CancellationException();
+                     }
+                 }
+             } finally {
+                 if (process.isAlive()) {
+                     process.destroy(); // Cancelled or interrupted
+                 }
+             }
+             int exitCode = process.exitValue();
+             String errorOutput = new String(Files.readAllBytes(errorFile.toPath()), StandardCharsets.UTF_8);
 
              if (exitCode == 0) {
-                outputArea.append("Graph image generated successfully: " + pngFileName + "\n");
-                 // Try to open the generated image
-                 try {
-                    Desktop.getDesktop().open(new File(pngFileName));
-                 } catch (UnsupportedOperationException | IOException openError) {
-                    outputArea.append("Could not automatically open the image file. Please find it at: " + new File(pngFileName).getAbsolutePath() + "\n");
-                 }
+                 rendering.log.append("Graph image generated successfully: ").append(pngFileName).append("\n");
+                 rendering.imageToOpen = new File(pngFileName); // Opened on the Event Dispatch Thread
              } else {
-                 outputArea.append("Graphviz 'dot' command failed (Exit Code: " + exitCode + ").\n");
-                 outputArea.append("Error output (if any):\n" + errorOutput.toString() + "\n");
-                 outputArea.append("Please ensure Graphviz is installed and the 'dot' command is in your system's PATH.\n");
-                 outputArea.append("The DOT file ("+dotFileName+") was saved, you can render it manually.\n");
-                JOptionPane.showMessageDialog(this,
-                        "Graphviz 'dot' command failed (Exit Code: " + exitCode + ").\n" +
-                        "Ensure Graphviz is installed and 'dot' is in PATH.\n" +
-                        "DOT file saved as " + dotFileName + ".\n\nError: " + errorOutput.toString(),
-                        "Graphviz Error", JOptionPane.WARNING_MESSAGE);
-            }
-
-         } catch (IOException | InterruptedException e) {
-             outputArea.append("Error executing Graphviz 'dot' command: " + e.getMessage() + "\n");
-             outputArea.append("Please ensure Graphviz is installed and the 'dot' command is in your system's PATH.\n");
-             outputArea.append("The DOT file ("+dotFileName+") was saved, you can render it manually.\n");
-            JOptionPane.showMessageDialog(this,
-                    "Could not run Graphviz 'dot' command: " + e.getMessage() + "\n" +
-                    "Ensure Graphviz is installed and 'dot' is in PATH.\n" +
-                    "DOT file saved as " + dotFileName + ".",
-                    "Graphviz Error", JOptionPane.WARNING_MESSAGE);
-             // Restore interrupted status
-            if (e instanceof InterruptedException) {
-                 Thread.currentThread().interrupt();
+                 rendering.log.append("Graphviz 'dot' command failed (Exit Code: ").append(exitCode).append(").\n");
+                 rendering.log.append("Error output (if any):\n").append(errorOutput).append("\n");
+                 rendering.log.append("Please ensure Graphviz is installed and the 'dot' command is in your system's PATH.\n");
+                 rendering.log.append("The DOT file (").append(dotFileName).append(") was saved, you can render it manually.\n");
+                 rendering.warn("Graphviz Error",
+                         "Graphviz 'dot' command failed (Exit Code: " + exitCode + ").\n" +
+                         "Ensure Graphviz is installed and 'dot' is in PATH.\n" +
+                         "DOT file saved as " + dotFileName + ".\n\nError: " + errorOutput,
+                         JOptionPane.WARNING_MESSAGE);
+             }
+         } catch (IOException e) {
+             rendering.log.append("Error executing Graphviz 'dot' command: ").append(e.getMessage()).append("\n");
+             rendering.log.append("Please ensure Graphviz is installed and the 'dot' command is in your system's PATH.\n");
+             rendering.log.append("The DOT file (").append(dotFileName).append(") was saved, you can render it manually.\n");
+             rendering.warn("Graphviz Error",
+                     "Could not run Graphviz 'dot' command: " + e.getMessage() + "\n" +
+                     "Ensure Graphviz is installed and 'dot' is in PATH.\n" +
+                     "DOT file saved as " + dotFileName + ".",
+                     JOptionPane.WARNING_MESSAGE);
+         } finally {
+             if (errorFile != null) {
+                 errorFile.delete();
+             }
+         }
+     }
+
+     // Shows a finished rendering: the CLI format, the messages, the picture and any warning
+     private void showRendering(Rendering rendering, String header) {
+         outputArea.setText(header + "--- Graph Structure (CLI Format) ---\n");
+         outputArea.append(rendering.cliText);
+         outputArea.append("\n--- End of CLI Format ---\n\n");
+         outputArea.append(rendering.log.toString());
+         if (rendering.image != null) {
+             showGraphImage(rendering.image);
+         }
+         if (rendering.imageToOpen != null) {
+             // Try to open the generated image
+             try {
+                Desktop.getDesktop().open(rendering.imageToOpen);
+             } catch (UnsupportedOperationException | IOException openError) {
+                outputArea.append("Could not automatically open the image file. Please find it at: " + rendering.imageToOpen.getAbsolutePath() + "\n");
              }
          }
+         if (rendering.warningTitle != null) {
+             JOptionPane.showMessageDialog(this, rendering.warningText, rendering.warningTitle, rendering.warningType);
+         }
+     }
+
+     // Shows what the background tasks are doing next to the status label
+     private void showTaskStatus(int pending, String message, int percent) {
+         if (walkRefresh != null && !taskRunner.isPending("random-walk")) { // The walk ended or was cancelled
+             walkRefresh.stop();
+             walkRefresh = null;
+             showWalkOutput(walkOutput);
+             btnStopWalk.setEnabled(false);
+             setGraphOperationButtonsEnabled(graph != null);
+         }
+         if (appendRunning && !taskRunner.isPending("append")) { // The append ended or was cancelled
+             appendRunning = false;
+             setGraphOperationButtonsEnabled(graph != null);
+         }
+         taskProgress.setVisible(pending > 0);
+         btnCancelTasks.setVisible(pending > 0);
+         if (pending == 0) {
+             return;
+         }
+         taskProgress.setIndeterminate(percent < 0);
+         taskProgress.setValue(Math.max(0, percent));
+         String text = percent < 0 ? message : message + " (" + percent + "%)";
+         taskProgress.setString(pending > 1 ? text + " [+" + (pending - 1) + " more]" : text);
+     }
+
+     // Reports an exception thrown by a background task
+     private void showTaskError(Throwable error) {
+         System.err.println("Background task failed: " + error);
+         outputArea.append("\nError: " + error.getMessage() + "\n");
+         if (!(error instanceof IllegalStateException)) {
+             JOptionPane.showMessageDialog(this, "Error: " + error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+         }
+     }
+
+     // Shows a rendered graph in a scrollable window, reused between renderings
+     private void showGraphImage(BufferedImage image) {
+         if (graphViewFrame == null) {
+             graphViewFrame = new JFrame("Graph View");
+             graphViewLabel = new JLabel();
+             graphViewFrame.add(new JScrollPane(graphViewLabel));
+             graphViewFrame.setSize(900, 700);
+             graphViewFrame.setLocationRelativeTo(this);
+         }
+         graphViewLabel.setIcon(new ImageIcon(image));
+         graphViewFrame.setVisible(true);
      }
 
       /**
@@ -689,20 +6265,7 @@ public class TextGraphApp extends JFrame {
                 return "No \"" + word2 + "\" in the graph!";
            }
 
-           List<String> bridgeWords = new ArrayList<>();
-           Map<String, Integer> word1Neighbors = graph.getNeighbors(word1);
-
-           if (word1Neighbors.isEmpty()) {
-                return "No bridge words from \"" + word1 + "\" to \"" + word2 + "\"!";
-            }
-
-
-           for (String bridgeCandidate : word1Neighbors.keySet()) {
-               // Check if there's an edge from bridgeCandidate to word2
-               if (graph.getNeighbors(bridgeCandidate).containsKey(word2)) {
-                   bridgeWords.add(bridgeCandidate);
-               }
-           }
+           List<String> bridgeWords = findBridgeWordsList(word1, word2);
 
            if (bridgeWords.isEmpty()) {
                 return "No bridge words from \"" + word1 + "\" to \"" + word2 + "\"!";
@@ -731,43 +6294,22 @@ public class TextGraphApp extends JFrame {
          if (graph == null) return "Error: Graph not generated. Cannot generate new text.";
          if (inputText == null || inputText.trim().isEmpty()) return ""; // Handle empty input
 
-         String processedInput = inputText.toLowerCase()
-                                     .replaceAll("[^a-z\\s]", " ")
-                                     .replaceAll("\\s+", " ");
-         String[] words = processedInput.trim().split("\\s+");
+         List<String> wordList = new ArrayList<>();
+         try {
+             WordTokenizer.tokenize(new StringReader(inputText), wordList::add);
+         } catch (IOException e) {
+             return inputText; // Not expected from a StringReader
+         }
+         String[] words = wordList.toArray(new String[0]);
 
          if (words.length < 2) {
              return inputText; // Not enough words to find bridges
          }
 
-         StringBuilder newTextBuilder = new StringBuilder();
-         Random random = new Random();
-         newTextBuilder.append(capitalizeFirst(words[0])); // Append the first word, capitalized
-
-
-         for (int i = 0; i < words.length - 1; i++) {
-             String word1 = words[i];
-             String word2 = words[i + 1];
-             List<String> bridgeWords = findBridgeWordsList(word1, word2); // Use helper
-
-             newTextBuilder.append(" "); // Space before next word or bridge word
-             if (!bridgeWords.isEmpty()) {
-                 // Select a random bridge word
-                 String chosenBridge = bridgeWords.get(random.nextInt(bridgeWords.size()));
-                 newTextBuilder.append(chosenBridge).append(" "); // Insert bridge word and space
-             }
-             newTextBuilder.append(words[i + 1]); // Append the next original word
-         }
-
-         return newTextBuilder.toString();
+         // The first word is capitalized, a random bridge word goes between each pair
+         return graph.bridgeIndex().insertBridgeWords(words, new Random(), sampling);
      }
 
-     // Helper to capitalize the first letter of a word
-    private String capitalizeFirst(String word) {
-         if (word == null || word.isEmpty()) return word;
-         return Character.toUpperCase(word.charAt(0)) + word.substring(1);
-    }
-
 
     // Helper for generateNewText: returns a list of bridge words, or empty list
     private List<String> findBridgeWordsList(String word1, String word2) {
@@ -776,12 +6318,15 @@ public class TextGraphApp extends JFrame {
             return bridgeWords; // Empty list if words not in graph
         }
 
-        Map<String, Integer> word1Neighbors = graph.getNeighbors(word1);
-        for (String bridgeCandidate : word1Neighbors.keySet()) {
-             if (graph.getNeighbors(bridgeCandidate).containsKey(word2)) {
-                 bridgeWords.add(bridgeCandidate);
-             }
-         }
+        BridgeWordIndex index = graph.bridgeIndex();
+        GraphSnapshot snapshot = index.getSnapshot();
+        int id1 = snapshot.idOf(word1);
+        int id2 = snapshot.idOf(word2);
+        int[] bridgeIds = new int[snapshot.outDegree(id1)];
+        int count = index.bridgeWords(id1, id2, bridgeIds);
+        for (int i = 0; i < count; i++) {
+            bridgeWords.add(snapshot.wordOf(bridgeIds[i]));
+        }
         return bridgeWords;
     }
 
@@ -798,7 +6343,15 @@ public class TextGraphApp extends JFrame {
          if (word2 != null) {
              word2 = word2.toLowerCase();
          }
+         String error = checkShortestPathWords(word1, word2);
+         if (error != null) {
+             return error;
+         }
+         return formatShortestPath(findShortestPath(word1, word2));
+     }
 
+     // Returns the error message for a missing word, or null if both words are in the graph
+     private String checkShortestPathWords(String word1, String word2) {
          if (!graph.containsNode(word1) || (word2 != null && !graph.containsNode(word2))) {
             String missing = "";
             if (!graph.containsNode(word1)) missing += "\"" + word1 + "\"";
@@ -808,86 +6361,106 @@ public class TextGraphApp extends JFrame {
             }
              return "Error: Word " + missing + " not found in the graph.";
          }
+         return null;
+     }
 
-
-         // Dijkstra's Algorithm Implementation
-         Map<String, Integer> distances = new HashMap<>();
-         Map<String, String> previousNodes = new HashMap<>();
-         PriorityQueue<Map.Entry<String, Integer>> pq = new PriorityQueue<>(Comparator.comparingInt(Map.Entry::getValue));
-         Set<String> settledNodes = new HashSet<>();
-
-
-         // Initialize distances
-         for (String node : graph.getAllNodes()) {
-             distances.put(node, Integer.MAX_VALUE);
+     /**
+      * Runs one shortest path search on the current snapshot.
+      * @param word1 The starting word (lowercase, in the graph).
+      * @param word2 The ending word (lowercase, in the graph), or null for paths to all nodes.
+      * @return The distances, predecessor tree and (for two words) the path.
+      */
+     ShortestPathResult findShortestPath(String word1, String word2) {
+         GraphSnapshot snapshot = graph.snapshot();
+         ShortestPathEngine shortestPathEngine = shortestPathEngine(snapshot);
+         int sourceId = snapshot.idOf(word1);
+         if (word2 == null) {
+             return shortestPathEngine.allTargets(sourceId);
          }
-         distances.put(word1, 0);
-         pq.add(new AbstractMap.SimpleEntry<>(word1, 0));
-
-
-         while (!pq.isEmpty()) {
-             String currentNode = pq.poll().getKey();
-
-             if (settledNodes.contains(currentNode)) continue;
-             settledNodes.add(currentNode);
-
-
-             // If we are looking for a specific target and found it, we can potentially stop early
-             // BUT for finding *all* paths if word2 is null, we must continue until pq is empty.
-              if (word2 != null && currentNode.equals(word2)) {
-                 // break; // Optimization if ONLY interested in word1 -> word2
-              }
+         AllPairsShortestPaths tables = allPairs;
+         if (tables != null && tables.getSnapshot() == snapshot) {
+             return tables.query(sourceId, snapshot.idOf(word2)); // Table lookup plus path walk
+         }
+         return shortestPathEngine.pointToPoint(sourceId, snapshot.idOf(word2), pointSearch);
+     }
 
+     /**
+      * All shortest paths between two words: every path of minimal total weight, built lazily as the
+      * stream is consumed. Words must be lowercase and in the graph.
+      * @return The paths as point-to-point results (all with the same distance); empty if there is no path.
+      */
+     Stream<ShortestPathResult> findAllShortestPaths(String word1, String word2) {
+         GraphSnapshot snapshot = graph.snapshot();
+         return new PathEnumerator(shortestPathEngine(snapshot)).allShortestPaths(snapshot.idOf(word1), snapshot.idOf(word2));
+     }
 
-             Map<String, Integer> neighbors = graph.getNeighbors(currentNode);
-             for (Map.Entry<String, Integer> neighborEntry : neighbors.entrySet()) {
-                 String neighbor = neighborEntry.getKey();
-                 int edgeWeight = neighborEntry.getValue();
+     /**
+      * The k shortest loopless paths between two words (Yen's algorithm), shortest first.
+      * Words must be lowercase and in the graph.
+      * @return At most k paths as point-to-point results, built lazily as the stream is consumed.
+      */
+     Stream<ShortestPathResult> findKShortestPaths(String word1, String word2, int k) {
+         GraphSnapshot snapshot = graph.snapshot();
+         return new PathEnumerator(shortestPathEngine(snapshot)).shortestPathsInOrder(snapshot.idOf(word1), snapshot.idOf(word2)).limit(k);
+     }
 
+     // Searches run on several task threads, so each thread keeps its own engine
+     private ShortestPathEngine shortestPathEngine(GraphSnapshot snapshot) {
+         ShortestPathEngine engine = shortestPathEngines.get();
+         if (engine == null || engine.getSnapshot() != snapshot) {
+             engine = new ShortestPathEngine(snapshot); // Its buffers are reused until the graph changes
+             shortestPathEngines.set(engine);
+         }
+         return engine;
+     }
 
-                 if (!settledNodes.contains(neighbor)) {
-                     int newDist = distances.get(currentNode) + edgeWeight;
-                     if (newDist < distances.get(neighbor)) {
-                         distances.put(neighbor, newDist);
-                         previousNodes.put(neighbor, currentNode);
-                         // Add/update neighbor in priority queue
-                         pq.add(new AbstractMap.SimpleEntry<>(neighbor, newDist));
-                     }
-                 }
-             }
+     // Lists several paths between two words; all-shortest listings share one weight, k-shortest ones do not
+     private String formatPaths(String heading, List<ShortestPathResult> paths, boolean truncated) {
+         StringBuilder result = new StringBuilder(heading).append("\n");
+         for (int i = 0; i < paths.size(); i++) {
+             result.append("  ").append(i + 1).append(". ").append(String.join(" -> ", paths.get(i).getPath()));
+             result.append(" (Weight: ").append(paths.get(i).getDistance()).append(")\n");
          }
+         if (truncated) {
+             result.append("  (Only the first ").append(paths.size()).append(" paths are shown.)\n");
+         }
+         return result.toString();
+     }
 
-         // --- Reconstruct and Format Path(s) ---
+     // Formats a search result as the text shown in the output area
+     private String formatShortestPath(ShortestPathResult pathResult) {
+         GraphSnapshot snapshot = pathResult.getSnapshot();
+         int sourceId = pathResult.getSource();
+         String word1 = snapshot.wordOf(sourceId);
          StringBuilder result = new StringBuilder();
 
-
-         if (word2 != null) {
+         if (pathResult.getTarget() >= 0) {
              // Case 1: Path between word1 and word2
-             if (distances.get(word2) == Integer.MAX_VALUE) {
+             int targetId = pathResult.getTarget();
+             String word2 = snapshot.wordOf(targetId);
+             if (!pathResult.hasPath()) {
                  return "No path found between \"" + word1 + "\" and \"" + word2 + "\".";
              } else {
-                 List<String> path = reconstructPath(previousNodes, word1, word2);
                  result.append("Shortest path from \"").append(word1).append("\" to \"").append(word2).append("\":\n");
-                 result.append(String.join(" -> ", path)).append("\n");
-                 result.append("Total weight: ").append(distances.get(word2));
-                 // Note: Highlighting is handled by calling showDirectedGraph separately
+                 result.append(String.join(" -> ", pathResult.getPath())).append("\n");
+                 result.append("Total weight: ").append(pathResult.getDistance());
                  return result.toString();
              }
          } else {
             // Case 2: Paths from word1 to all other nodes
             result.append("Shortest paths from \"").append(word1).append("\" to all other reachable nodes:\n");
              boolean foundPath = false;
-             List<String> sortedNodes = new ArrayList<>(graph.getAllNodes());
+             List<String> sortedNodes = new ArrayList<>(snapshot.words());
              Collections.sort(sortedNodes); // For consistent output
 
 
              for (String targetNode : sortedNodes) {
-                 if (!targetNode.equals(word1) && distances.get(targetNode) != Integer.MAX_VALUE) {
+                 int targetId = snapshot.idOf(targetNode);
+                 if (targetId != sourceId && pathResult.reaches(targetId)) {
                      foundPath = true;
-                     List<String> path = reconstructPath(previousNodes, word1, targetNode);
                      result.append("  To \"").append(targetNode).append("\": ");
-                     result.append(String.join(" -> ", path));
-                     result.append(" (Weight: ").append(distances.get(targetNode)).append(")\n");
+                     result.append(String.join(" -> ", pathResult.pathTo(targetId)));
+                     result.append(" (Weight: ").append(pathResult.distance(targetId)).append(")\n");
                  }
              }
              if (!foundPath) {
@@ -897,332 +6470,209 @@ public class TextGraphApp extends JFrame {
          }
      }
 
-     // Helper to reconstruct the path from Dijkstra's results
-     private List<String> reconstructPath(Map<String, String> previousNodes, String start, String end) {
-         LinkedList<String> path = new LinkedList<>();
-         for (String at = end; at != null; at = previousNodes.get(at)) {
-             path.addFirst(at);
-             if (at.equals(start)) break; // Should happen if path exists
+     // Lists all shortest paths (or the k shortest) between the shortest path words and highlights them
+     private void showSeveralPaths(boolean kShortest) {
+         if (graph == null) {
+             outputArea.setText("Error: No graph generated. Load a file first.");
+             return;
          }
-          // If path doesn't start with 'start', something went wrong or no path
-         if (path.isEmpty() || !path.getFirst().equals(start)) {
-             return Collections.emptyList(); // Or handle error appropriately
+         String word1 = spWord1Input.getText().trim().toLowerCase();
+         String word2 = spWord2Input.getText().trim().toLowerCase();
+         if (word1.isEmpty() || word2.isEmpty()) {
+             outputArea.setText("Please enter both Word 1 and Word 2 to list several paths.");
+             return;
+         }
+         int k = MAX_LISTED_PATHS;
+         if (kShortest) {
+             try {
+                 k = Integer.parseInt(spPathCountInput.getText().trim());
+             } catch (NumberFormatException ex) {
+                 k = 0;
+             }
+             if (k < 1) {
+                 outputArea.setText("Error: k must be a positive whole number.");
+                 return;
+             }
+         }
+         String error = checkShortestPathWords(word1, word2);
+         if (error != null) {
+             outputArea.setText(error);
+             return;
          }
-         return path;
-     }
 
-    // Helper used by the action listener to get the path list for highlighting
-    private List<String> findShortestPathList(String word1, String word2) {
-        if (graph == null || word1 == null || word2 == null || word1.isEmpty() || word2.isEmpty()) return null;
-        word1 = word1.toLowerCase();
-        word2 = word2.toLowerCase();
-         if (!graph.containsNode(word1) || !graph.containsNode(word2)) return null;
-
-         // Re-run Dijkstra (or reuse results if stored) - simpler to re-run here
-         Map<String, Integer> distances = new HashMap<>();
-         Map<String, String> previousNodes = new HashMap<>();
-         PriorityQueue<Map.Entry<String, Integer>> pq = new PriorityQueue<>(Comparator.comparingInt(Map.Entry::getValue));
-         Set<String> settledNodes = new HashSet<>();
-
-         for (String node : graph.getAllNodes()) distances.put(node, Integer.MAX_VALUE);
-         distances.put(word1, 0);
-         pq.add(new AbstractMap.SimpleEntry<>(word1, 0));
-
-         while (!pq.isEmpty()) {
-             String currentNode = pq.poll().getKey();
-             if (settledNodes.contains(currentNode)) continue;
-             settledNodes.add(currentNode);
-             if (currentNode.equals(word2)) break; // Found target
-
-             Map<String, Integer> neighbors = graph.getNeighbors(currentNode);
-             for (Map.Entry<String, Integer> neighborEntry : neighbors.entrySet()) {
-                 String neighbor = neighborEntry.getKey();
-                 int edgeWeight = neighborEntry.getValue();
-                 if (!settledNodes.contains(neighbor)) {
-                     int newDist = distances.get(currentNode) + edgeWeight;
-                     if (newDist < distances.get(neighbor)) {
-                         distances.put(neighbor, newDist);
-                         previousNodes.put(neighbor, currentNode);
-                         pq.add(new AbstractMap.SimpleEntry<>(neighbor, newDist));
-                     }
+         int limit = k;
+         DirectedGraph searched = graph;
+         taskRunner.submit("shortest-path", (kShortest ? "k" + limit : "all") + " " + word1 + " " + word2,
+                 kShortest ? "Finding the " + limit + " shortest paths" : "Finding all shortest paths", progress -> {
+             List<ShortestPathResult> paths = new ArrayList<>();
+             // Only the listed paths are built; one extra tells whether all shortest paths were listed
+             Iterator<ShortestPathResult> found = (kShortest ? findKShortestPaths(word1, word2, limit)
+                     : findAllShortestPaths(word1, word2).limit(limit + 1L)).iterator();
+             while (found.hasNext()) {
+                 if (progress.isCancelled()) {
+                     throw new CancellationException();
                  }
+                 paths.add(found.next());
+                 progress.report(kShortest ? 100 * paths.size() / limit : -1, "Found " + paths.size() + " path(s)");
+             }
+             return paths;
+         }, paths -> {
+             boolean truncated = paths.size() > limit;
+             if (truncated) {
+                 paths.remove(limit);
+             }
+             if (paths.isEmpty()) {
+                 outputArea.setText("No path found between \"" + word1 + "\" and \"" + word2 + "\".");
+                 return;
              }
-         }
 
-         if (distances.get(word2) != Integer.MAX_VALUE) {
-             return reconstructPath(previousNodes, word1, word2);
-         } else {
-             return null; // No path found
-         }
+             List<List<String>> highlighted = new ArrayList<>();
+             for (ShortestPathResult path : paths) {
+                 highlighted.add(path.getPath());
+             }
+             String heading = kShortest
+                     ? paths.size() + " shortest path(s) from \"" + word1 + "\" to \"" + word2 + "\":"
+                     : "All shortest paths from \"" + word1 + "\" to \"" + word2 + "\":";
+             showDirectedGraphWithPaths(searched, highlighted, formatPaths(heading, paths, truncated) + "\n");
+         }, this::showTaskError);
      }
 
     /**
-     * Function 6 (Helper): Calculates PageRank for all nodes and stores it.
-     * The public `calPageRank` method (not explicitly defined per spec change)
-     * would look up the value for a specific word from the pre-calculated map.
-     * This method calculates and displays all ranks.
+     * Function 6 (Helper): The PageRank text for all nodes; safe to build on a task thread.
+     * Ranks come from the PageRank cache, so they are only recomputed when the graph has changed.
      */
-    private void calculateAndDisplayAllPageRanks() {
-        if (graph == null || graph.getAllNodes().isEmpty()) {
-            outputArea.setText("Graph is empty or not loaded. Cannot calculate PageRank.");
-            pageRankScores = null; // Ensure scores are null
-            return;
-        }
-
-        Set<String> nodes = graph.getAllNodes();
-        int numNodes = nodes.size();
-        if (numNodes == 0) { // Extra check
-            outputArea.setText("Graph has no nodes. Cannot calculate PageRank.");
-            pageRankScores = null;
-            return;
+    private String pageRankReport() {
+        if (graph == null || graph.snapshot().nodeCount() == 0) {
+            return "Graph is empty or not loaded. Cannot calculate PageRank.";
         }
-        
         if (this.wordCounts == null) { // Check if wordCounts was initialized
-             outputArea.setText("Error: Word counts map is null. Cannot initialize PageRank based on TF. Load file again?");
-             pageRankScores = null;
-             return;
+             return "Error: Word counts map is null. Cannot initialize PageRank based on TF. Load file again?";
          }
-        if (this.wordCounts.isEmpty() && numNodes > 0) {
-            // Graph has nodes, but wordCounts is empty (e.g., file had structure but no words?)
-            // Fallback to uniform initialization OR report error
-            System.err.println("Warning: Graph has nodes but word counts are empty. Falling back to uniform PageRank initialization.");
-            pageRankScores = new HashMap<>();
-            double initialRank = 1.0 / numNodes;
-            for (String node : nodes) {
-                pageRankScores.put(node, initialRank);
-            }
-            // Proceed with calculation using uniform start
-        } else {
-            // Initialize PageRank scores based on Term Frequency (TF)
-            pageRankScores = new HashMap<>();
-            long totalWordOccurrences = 0; // Sum of frequencies of all words in the doc
-            for (int count : this.wordCounts.values()) {
-                totalWordOccurrences += count;
-            }
-
-            if (totalWordOccurrences == 0 && numNodes > 0) {
-                // This case might happen if words existed but counts somehow became zero.
-                System.err.println("Warning: Total word occurrences is zero, but graph has nodes. Falling back to uniform PageRank initialization.");
-                pageRankScores = new HashMap<>();
-                double initialRank = 1.0 / numNodes;
-                for (String node : nodes) {
-                    pageRankScores.put(node, initialRank);
-                }
-            } else if (totalWordOccurrences > 0) {
-                 System.out.println("[DEBUG] Initializing PageRank based on TF. Total Occurrences: " + totalWordOccurrences);
-                 double sumCheck = 0.0;
-                 for (String node : nodes) {
-                    int count = this.wordCounts.getOrDefault(node, 0);
-                    // Initial PR = TF / TotalTF
-                    // Nodes in the graph might not have appeared in the text if added differently, handle 0 count.
-                    double initialRank = (count > 0) ? (double)count / totalWordOccurrences : 0.0;
-                    pageRankScores.put(node, initialRank);
-                    sumCheck += initialRank;
-                 }
-                 System.out.printf("[DEBUG] Initial PageRank sum (should be close to 1.0): %.6f\n", sumCheck);
-                 // Optional: Normalize if sum isn't exactly 1 due to floating point issues or graph structure mismatches
-                 if (Math.abs(sumCheck - 1.0) > 1e-5) {
-                     System.err.println("Warning: Initial PageRank sum deviates significantly from 1. Normalizing.");
-                     if (sumCheck > 0) { // Avoid division by zero if all counts were somehow 0
-                        for (String node : nodes) {
-                            pageRankScores.put(node, pageRankScores.get(node) / sumCheck);
-                        }
-                     } else {
-                         // Fallback again if normalization failed
-                         System.err.println("Error: Cannot normalize zero sum. Falling back to uniform distribution.");
-                         double initialRank = 1.0 / numNodes;
-                         for (String node : nodes) {
-                             pageRankScores.put(node, initialRank);
-                         }
-                     }
-                 }
-
-                 System.out.println("[DEBUG] Initial PageRank Values (TF-based, potentially normalized):");
-                 for (Map.Entry<String, Double> entry : pageRankScores.entrySet()) {
-                     System.out.printf("  %-15s : %.6f\n", entry.getKey(), entry.getValue());
-                 }
-            } else {
-                 // totalWordOccurrences is 0 and numNodes is 0 - graph is empty, handled at start.
-                 // This 'else' should ideally not be reached if checks above are correct.
-            }
-        }
-
-
-        // --- PageRank Iteration ---
-        final double d = 0.85; // Damping factor
-        final int maxIterations = 100;
-        final double tolerance = 1e-6;
-
-        Map<String, Double> newRankScores = new HashMap<>();
-        Map<String, Integer> outDegrees = new HashMap<>(); // Precompute out-degrees
-        for (String node : nodes) {
-            outDegrees.put(node, graph.getNeighbors(node).size());
-        }
-
-        int iteration = 0;
-        double delta = 1.0;
-
-        while (iteration < maxIterations && delta > tolerance) {
-            double danglingSum = 0.0; // Sum of PR from dangling nodes in the *previous* iteration
-
-            // --- Step 1: Calculate the total PageRank of dangling nodes ---
-            for (String node : nodes) {
-                if (outDegrees.get(node) == 0) {
-                    // Accumulate PR from dangling nodes using scores from the previous iteration
-                    danglingSum += pageRankScores.get(node);
-                }
-            }
-
-            // The portion of dangling PR to redistribute to *each* node
-            double danglingContributionPerNode = d * (danglingSum / numNodes);
-
-            double totalChange = 0.0; // Reset total change for convergence check this iteration
-
-            // --- Step 2: Calculate new ranks for all nodes ---
-            for (String nodeP : nodes) {
-                // Base rank: random jump probability + share of redistributed dangling PR
-                double newRank = (1.0 - d) / numNodes + danglingContributionPerNode;
-
-                // Add rank from incoming links (only non-dangling nodes contribute via links)
-                double incomingRankSum = 0;
-                Set<String> inNeighbors = graph.getInNeighbors(nodeP); // Get nodes Q such that Q -> P
-                for (String nodeQ : inNeighbors) {
-                    int outDegreeQ = outDegrees.get(nodeQ);
-                    // IMPORTANT: Only consider contribution if the source node Q is NOT dangling.
-                    // Its contribution (if dangling) is already accounted for in danglingContributionPerNode.
-                    if (outDegreeQ > 0) {
-                        incomingRankSum += pageRankScores.get(nodeQ) / outDegreeQ;
-                    }
-                }
-                newRank += d * incomingRankSum; // Scale the contribution from actual links
-
-                newRankScores.put(nodeP, newRank); // Store the calculated new rank temporarily
-                totalChange += Math.abs(newRank - pageRankScores.get(nodeP)); // Accumulate the change
-            }
-
-            // --- Step 3: Update PageRank scores and check for convergence ---
-            pageRankScores.putAll(newRankScores); // Update all scores for the next iteration
-            delta = totalChange; // Use the total absolute change as the convergence metric
 
-            iteration++;
-            // System.out.printf("[DEBUG] Iteration %d, Delta: %.8f\n", iteration, delta); // Optional debug
+        PageRankEngine.Result pageRankResult = pageRankCache.get();
+        if (pageRankResult == null) {
+            return "PageRank calculation was interrupted.";
         }
+        GraphSnapshot snapshot = pageRankResult.snapshot;
 
         // --- Display Results ---
-        StringBuilder result = new StringBuilder("PageRank Calculation Results (d=0.85, ");
-        if (delta <= tolerance) {
-            result.append("Converged in ").append(iteration).append(" iterations):\n");
+        StringBuilder result = new StringBuilder("PageRank Calculation Results (d=" + pageRankCache.getEngine().getDampingFactor() + ", ");
+        if (pageRankResult.converged && pageRankResult.isIncremental()) {
+            result.append("Updated incrementally: ").append(pageRankResult.pushes).append(" pushes, ")
+                    .append(pageRankResult.iterations).append(" iterations' worth of work):\n");
+        } else if (pageRankResult.converged) {
+            result.append("Converged in ").append(pageRankResult.iterations).append(" iterations):\n");
         } else {
-            result.append("Stopped after max iterations: ").append(iteration).append("):\n");
+            result.append("Stopped after max iterations: ").append(pageRankResult.iterations).append("):\n");
         }
 
         // Verify sum is close to 1 (optional check)
         double finalSum = 0;
-        for(double score : pageRankScores.values()) finalSum += score;
+        for (double score : pageRankResult.ranks) finalSum += score;
         result.append(String.format("  (Final sum: %.6f)\n", finalSum));
 
+        // Sort descending by PR; ties keep node order
+        Integer[] order = new Integer[snapshot.nodeCount()];
+        for (int id = 0; id < order.length; id++) order[id] = id;
+        double[] ranks = pageRankResult.ranks;
+        Arrays.sort(order, (a, b) -> Double.compare(ranks[b], ranks[a]));
 
-        List<Map.Entry<String, Double>> sortedRanks = new ArrayList<>(pageRankScores.entrySet());
-        sortedRanks.sort((e1, e2) -> e2.getValue().compareTo(e1.getValue())); // Sort descending by PR
-
-        for (Map.Entry<String, Double> entry : sortedRanks) {
-            result.append(String.format("  %-15s : %.8f\n", entry.getKey(), entry.getValue())); // Increased precision
+        for (int id : order) {
+            result.append(String.format("  %-15s : %.8f\n", snapshot.wordOf(id), ranks[id])); // Increased precision
         }
-        outputArea.setText(result.toString());
+        return result.toString();
     }
 
      /**
-      * Function 6 Interface (as required, though calculation is done for all):
-      * Returns the pre-calculated PageRank for a specific word.
+      * Function 6 Interface: Returns the PageRank of a specific word.
+      * Ranks for all nodes are computed on first access and cached until the graph changes,
+      * so repeated lookups are plain map reads.
       * @param word The word to get the PageRank for.
-      * @return The PageRank value, or null/error indicator if not calculated or word not found.
-      * NOTE: The GUI button triggers calculation for ALL nodes now.
-      * This function complies with the spec but relies on the map being populated.
+      * @return The PageRank value, or null if no graph is loaded or the word is not in the graph.
       */
      public Double calPageRank(String word) {
-         if (pageRankScores == null) {
-             // Optionally trigger the full calculation here if needed on demand
-              System.err.println("PageRank not calculated yet. Please use the 'Calc PageRank (All)' button first.");
-             // calculateAndDisplayAllPageRanks(); // Or trigger calculation
-              return null; // Indicate not ready or not found
+         if (graph == null) {
+             System.err.println("PageRank not available: no graph loaded.");
+             return null;
          }
-         return pageRankScores.getOrDefault(word.toLowerCase(), null); // Return null if word not in map
+         return pageRankCache.rankOf(word.toLowerCase()); // Return null if word not in graph
      }
 
 
     /**
      * Function 7: Performs a random walk on the graph.
-     * Stops on first repeated edge or dead end. Can be interrupted by the user.
+     * Stops on first repeated edge or dead end, or when the calling thread is interrupted.
      * @return A string containing the path traversed and status (stopped/completed).
      */
     public String randomWalk() {
-        if (graph == null || graph.getAllNodes().isEmpty()) {
-            return "Error: Graph is empty or not loaded.";
-        }
+        StringBuilder result = new StringBuilder();
+        randomWalk(() -> Thread.currentThread().isInterrupted(), result::append);
+        return result.toString();
+    }
 
-        Random random = new Random();
-        List<String> nodesList = new ArrayList<>(graph.getAllNodes());
-        if (nodesList.isEmpty()) {
-            return "Error: No nodes in the graph to start walk.";
+    /**
+     * Function 7, streamed: the text of randomWalk() is handed to display piece by piece while the
+     * walk runs, and the walk is written to random_walk_output.txt by a background writer.
+     * @param cancelled Polled after every step; the walk stops when it returns true.
+     */
+    private void randomWalk(BooleanSupplier cancelled, Consumer<String> display) {
+        if (graph == null || graph.snapshot().nodeCount() == 0) {
+            display.accept("Error: Graph is empty or not loaded.");
+            return;
         }
 
-        String currentNode = nodesList.get(random.nextInt(nodesList.size())); // Random start node
-        List<String> visitedPath = new ArrayList<>();
-        Set<String> visitedEdges = new HashSet<>(); // Store edges as "source->target"
-
-        StringBuilder pathString = new StringBuilder();
-        String stopReason = "Completed (Dead End)"; // Default stop reason
-
-        while (!stopRandomWalk) {
-            visitedPath.add(currentNode);
-            pathString.append(currentNode);
-
-            Map<String, Integer> neighbors = graph.getNeighbors(currentNode);
-            if (neighbors.isEmpty()) {
-                stopReason = "Stopped (Dead End at '" + currentNode + "')";
-                break; // No outgoing edges
-            }
-
-            // Select random next node from neighbors
-            List<String> neighborKeys = new ArrayList<>(neighbors.keySet());
-            String nextNode = neighborKeys.get(random.nextInt(neighborKeys.size()));
-
-            String edge = currentNode + "->" + nextNode;
-            if (visitedEdges.contains(edge)) {
-                stopReason = "Stopped (Repeated edge: " + edge + ")";
-                visitedPath.add(nextNode); // Add the final node leading to the repeat
-                pathString.append(" -> ").append(nextNode);
-                break; // Edge repeated
-            }
-
-            visitedEdges.add(edge);
-            pathString.append(" -> ");
-            currentNode = nextNode; // Move to the next node
-
-            // Optional: Add a small delay to make the walk observable if needed
-            // try { Thread.sleep(100); } catch (InterruptedException e) { Thread.currentThread().interrupt(); break; }
+        SplittableRandom random = new SplittableRandom();
+        GraphSnapshot snapshot = graph.snapshot();
+        if (snapshot.nodeCount() == 0) {
+            display.accept("Error: No nodes in the graph to start walk.");
+            return;
         }
 
-         if (stopRandomWalk) {
-             stopReason = "Stopped (User Interruption)";
-         }
-
-        // Save the walk to a file
+        int startNode = random.nextInt(snapshot.nodeCount()); // Random start node
         String walkFileName = "random_walk_output.txt";
-        try (PrintWriter writer = new PrintWriter(new FileWriter(walkFileName))) {
-            writer.println("Random Walk Path:");
-             writer.println(String.join(" -> ", visitedPath));
-             writer.println("\nStatus: " + stopReason);
-        } catch (IOException e) {
-            // Also report error to GUI
-            final String errorMsg = "Error writing random walk to file '" + walkFileName + "': " + e.getMessage();
-            SwingUtilities.invokeLater(() -> outputArea.append("\n" + errorMsg));
-             System.err.println(errorMsg);
+        String newline = System.lineSeparator();
+        int[] lastTwo = {-1, -1}; // Previous and current node
+        String stopReason = null;
+
+        // Steps are streamed to the file by a background writer while the walk runs
+        synchronized (walkLock) {
+            try (WalkOutputWriter writer = new WalkOutputWriter(new File(walkFileName), 0)) {
+                WalkOutputWriter.Batch out = writer.newBatch();
+                try {
+                    out.append("Random Walk Path:" + newline);
+                    display.accept("Random Walk Path:\n");
+                    int repeatedEdge = new RandomWalkEngine(snapshot, sampling).walk(startNode, random, cancelled, id -> {
+                        String word = snapshot.wordOf(id);
+                        if (lastTwo[1] >= 0) {
+                            out.append(" -> ");
+                            display.accept(" -> ");
+                        }
+                        out.append(word);
+                        display.accept(word);
+                        lastTwo[0] = lastTwo[1];
+                        lastTwo[1] = id;
+                    });
+                    if (repeatedEdge >= 0) {
+                        stopReason = "Stopped (Repeated edge: " + snapshot.wordOf(lastTwo[0]) + "->" + snapshot.wordOf(lastTwo[1]) + ")";
+                    } else if (repeatedEdge == -1) {
+                        stopReason = "Stopped (Dead End at '" + snapshot.wordOf(lastTwo[1]) + "')";
+                    } else {
+                        stopReason = "Stopped (User Interruption)";
+                    }
+                    out.append(newline + newline + "Status: " + stopReason + newline);
+                    display.accept("\n\nStatus: " + stopReason);
+                } finally {
+                    out.endRecord(); // The whole walk is one record; releases the record lock if it was split
+                    out.flush(); // Also when stopped: what was walked is kept
+                }
+            } catch (IOException e) {
+                String errorMsg = "Error writing random walk to file '" + walkFileName + "': " + e.getMessage();
+                System.err.println(errorMsg);
+                display.accept(stopReason == null ? errorMsg : "\n" + errorMsg); // Not opened, or not saved
+                return;
+            }
         }
-
-        return "Random Walk Path:\n" + String.join(" -> ", visitedPath) +
-               "\n\nStatus: " + stopReason +
-                "\nPath saved to: " + walkFileName;
+        display.accept("\nPath saved to: " + walkFileName);
     }
 
 
@@ -1235,12 +6685,26 @@ public class TextGraphApp extends JFrame {
               System.err.println("Couldn't set system look and feel.");
          }
 
+        // Options come first (--load-mode=streaming|parallel|mmap, --path-search=bidirectional|early-exit,
+        // --renderer=builtin|dot, --sampling=uniform|weighted), then the optional file path
+        CommandLineOptions options = new CommandLineOptions(args, "load-mode", "path-search", "renderer", "sampling");
+        final GraphBuilder.LoadMode selectedMode = options.getEnum("load-mode", GraphBuilder.LoadMode.STREAMING);
+        final ShortestPathEngine.PointSearch selectedSearch =
+                options.getEnum("path-search", ShortestPathEngine.PointSearch.BIDIRECTIONAL);
+        final GraphRenderer.Backend selectedRenderer = options.getEnum("renderer", GraphRenderer.Backend.BUILTIN);
+        final RandomWalkEngine.Sampling selectedSampling = options.getEnum("sampling", RandomWalkEngine.Sampling.UNIFORM);
+        List<String> positional = options.getPositional();
+
         // Run the GUI on the Event Dispatch Thread
         SwingUtilities.invokeLater(() -> {
             TextGraphApp app = new TextGraphApp();
+            app.loadMode = selectedMode;
+            app.pointSearch = selectedSearch;
+            app.renderBackend = selectedRenderer;
+            app.sampling = selectedSampling;
             // Handle command line argument for file path (optional)
-             if (args.length > 0) {
-                 String filePath = args[0];
+             if (!positional.isEmpty()) {
+                 String filePath = positional.get(0);
                  File file = new File(filePath);
                  if (file.exists() && !file.isDirectory()) {
                      app.fileChooser.setSelectedFile(file); // Pre-select file